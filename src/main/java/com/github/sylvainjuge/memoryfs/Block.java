@@ -0,0 +1,372 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+/**
+ * Block of file content, which may be shared by several files. Shared blocks must not be modified, writers copy them
+ * first (copy on write).
+ */
+final class Block {
+
+    // clock periods in which a block is used before being promoted to a higher tier, scans only use one
+    private static final int PROMOTION_PERIODS = 2;
+
+    private final BlockStorage storage;
+    private final AtomicInteger references;
+    private final boolean pinned; // part of a memory mapping, thus never compressed nor moved
+    private volatile boolean interned; // stored in block index, must not be modified
+    private volatile long lastAccess;
+
+    // thread safety : synchronized on instance for r/w
+    private ByteBuffer buffer; // null when compressed, may be moved to another tier by storage
+    private byte[] compressed; // null when not compressed
+    private ByteBuffer view; // reused view of direct buffer, null until used or when buffer is replaced
+    private int transfers; // number of transfers in progress, which read buffer without lock
+    private int accessPeriods; // number of clock periods in which block is used since buffer was set, up to PROMOTION_PERIODS
+
+    Block(BlockStorage storage, ByteBuffer buffer) {
+        this(storage, buffer, false);
+    }
+
+    Block(BlockStorage storage, ByteBuffer buffer, boolean pinned) {
+        this.storage = storage;
+        this.buffer = buffer;
+        this.pinned = pinned;
+        this.references = new AtomicInteger(1);
+        this.lastAccess = storage.clock();
+    }
+
+    /**
+     * @return block content, position &amp; limit must not be modified. May be compressed again once lock is released.
+     * @throws IOException if block must be decompressed and storage can't provide a buffer
+     */
+    synchronized ByteBuffer buffer() throws IOException {
+        return access();
+    }
+
+    /**
+     * @return content of an interned block, which is never compressed
+     */
+    synchronized ByteBuffer internedBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Reads block content, blocks read optimistically (without lock on their file) are neither decompressed, promoted
+     * nor marked as accessed, since read may be discarded.
+     *
+     * @throws StaleReadException if read optimistically and block is released or compressed
+     */
+    synchronized void get(int blockOffset, byte[] dst, int offset, int length, boolean optimistic) throws IOException {
+        ByteBuffer b = access(optimistic);
+        if (b.hasArray()) {
+            System.arraycopy(b.array(), b.arrayOffset() + blockOffset, dst, offset, length);
+        } else {
+            view(blockOffset, length).get(dst, offset, length);
+        }
+    }
+
+    synchronized byte get(int blockOffset, boolean optimistic) throws IOException {
+        return access(optimistic).get(blockOffset);
+    }
+
+    synchronized void get(int blockOffset, ByteBuffer dst, int length, boolean optimistic) throws IOException {
+        ByteBuffer b = access(optimistic);
+        if (b.hasArray()) {
+            dst.put(b.array(), b.arrayOffset() + blockOffset, length);
+        } else {
+            dst.put(view(blockOffset, length));
+        }
+    }
+
+    /**
+     * Writes block content to a channel without copying it nor holding lock, caller must hold a reference to block.
+     */
+    int transferTo(int blockOffset, int length, WritableByteChannel target) throws IOException {
+        ByteBuffer view = startTransfer().asReadOnlyBuffer();
+        try {
+            view.limit(blockOffset + length);
+            view.position(blockOffset);
+            return target.write(view);
+        } finally {
+            endTransfer();
+        }
+    }
+
+    /**
+     * Writes block content to a stream without holding lock, caller must hold a reference to block.
+     *
+     * @param chunk array of at least {@code length} bytes, which content of direct buffers is copied to, may be reused
+     *              by caller for other blocks
+     */
+    void writeTo(int blockOffset, int length, OutputStream out, byte[] chunk) throws IOException {
+        ByteBuffer b = startTransfer();
+        try {
+            if (b.hasArray()) {
+                out.write(b.array(), b.arrayOffset() + blockOffset, length);
+            } else {
+                ByteBuffer view = b.duplicate();
+                view.limit(blockOffset + length);
+                view.position(blockOffset);
+                view.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        } finally {
+            endTransfer();
+        }
+    }
+
+    // content is neither compressed nor moved until transfer ends
+    private synchronized ByteBuffer startTransfer() throws IOException {
+        ByteBuffer b = access();
+        transfers++;
+        return b;
+    }
+
+    private synchronized void endTransfer() {
+        transfers--;
+    }
+
+    // block must not be shared
+    synchronized void put(int blockOffset, byte[] src, int offset, int length) throws IOException {
+        ByteBuffer b = access();
+        if (b.hasArray()) {
+            System.arraycopy(src, offset, b.array(), b.arrayOffset() + blockOffset, length);
+        } else {
+            view(blockOffset, length).put(src, offset, length);
+        }
+    }
+
+    // block must not be shared, source position is advanced by length
+    synchronized void put(int blockOffset, ByteBuffer src, int length) throws IOException {
+        ByteBuffer b = access();
+        if (b.hasArray()) {
+            src.get(b.array(), b.arrayOffset() + blockOffset, length);
+            return;
+        }
+        // source is limited in place rather than through a duplicate, which would be allocated
+        int limit = src.limit();
+        src.limit(src.position() + length);
+        try {
+            view(blockOffset, length).put(src);
+        } finally {
+            src.limit(limit);
+        }
+    }
+
+    // block must not be shared
+    synchronized void put(int blockOffset, byte b) throws IOException {
+        access().put(blockOffset, b);
+    }
+
+    // destination block must not be shared
+    synchronized void copyTo(Block dst) throws IOException {
+        ByteBuffer src = access();
+        synchronized (dst) {
+            dst.access().duplicate().put(src.duplicate());
+        }
+    }
+
+    private ByteBuffer access() throws IOException {
+        return access(false);
+    }
+
+    private ByteBuffer access(boolean optimistic) throws IOException {
+        if (optimistic) {
+            if (null == buffer) {
+                // released while file is being modified, or compressed : decompression allocates storage, thus is
+                // only done by reads that are known to be valid
+                throw StaleReadException.INSTANCE;
+            }
+            // access is only recorded once read is known to be valid, see promote()
+            return buffer;
+        }
+        if (null == buffer && null == compressed) {
+            throw new IllegalStateException("block has been released");
+        }
+        recordAccess();
+        if (null == buffer) {
+            decompress();
+        } else {
+            promoteIfUsed();
+        }
+        return buffer;
+    }
+
+    /**
+     * Records access of an optimistic read once it is known to be valid, and moves block to a higher tier when it's
+     * used repeatedly. Blocks released since are left as is.
+     */
+    synchronized void promote() {
+        if (null != buffer) {
+            recordAccess();
+            promoteIfUsed();
+        }
+    }
+
+    private void recordAccess() {
+        long now = storage.clock();
+        if (now != lastAccess && accessPeriods < PROMOTION_PERIODS) {
+            accessPeriods++;
+        }
+        lastAccess = now;
+    }
+
+    private void promoteIfUsed() {
+        if (!interned && !pinned && 0 == transfers && PROMOTION_PERIODS <= accessPeriods) {
+            ByteBuffer promoted = storage.promote(buffer);
+            if (null != promoted) {
+                setBuffer(promoted);
+            }
+        }
+    }
+
+    // view is reused by later calls, thus must only be used with lock
+    private ByteBuffer view(int blockOffset, int length) {
+        if (null == view) {
+            view = buffer.duplicate();
+        }
+        view.clear();
+        view.limit(blockOffset + length);
+        view.position(blockOffset);
+        return view;
+    }
+
+    private void setBuffer(ByteBuffer newBuffer) {
+        buffer = newBuffer;
+        view = null;
+        accessPeriods = 0;
+    }
+
+    synchronized ByteBuffer currentBuffer() {
+        return buffer;
+    }
+
+    long lastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * @return previous buffer, which has to be released, null if block is compressed, interned, pinned or transferred
+     */
+    synchronized ByteBuffer moveTo(ByteBuffer target) {
+        if (null == buffer || interned || pinned || 0 < transfers) {
+            return null;
+        }
+        target.duplicate().put(buffer.duplicate());
+        ByteBuffer previous = buffer;
+        setBuffer(target);
+        return previous;
+    }
+
+    private void decompress() throws IOException {
+        long start = BlockStorage.cpuTime();
+        ByteBuffer b = storage.allocate();
+        boolean inflated = false;
+        try {
+            storage.inflate(compressed, b);
+            inflated = true;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupted compressed block", e);
+        } finally {
+            if (!inflated) {
+                storage.release(b);
+            }
+        }
+        storage.decompressed(compressed.length, BlockStorage.cpuTime() - start);
+        setBuffer(b);
+        compressed = null;
+    }
+
+    /**
+     * @return size of compressed content, {@code -1} if block has been used within {@code coldAge} or not compressed
+     */
+    synchronized int compress(Deflater deflater, long now, long coldAge, byte[] output) {
+        if (null == buffer || interned || pinned || 0 < transfers || now - lastAccess < coldAge) {
+            return -1;
+        }
+        byte[] content = new byte[FileData.BLOCK_SIZE];
+        buffer.duplicate().get(content);
+        deflater.reset();
+        deflater.setInput(content);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished() && length < output.length) {
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        if (!deflater.finished()) {
+            // not worth compressing, will be tried again once block becomes cold again
+            lastAccess = now;
+            return -1;
+        }
+        compressed = Arrays.copyOf(output, length);
+        storage.release(buffer);
+        setBuffer(null);
+        return length;
+    }
+
+    synchronized boolean isCompressed() {
+        return null == buffer;
+    }
+
+    // called once all references to block have been released
+    synchronized void free() {
+        if (pinned) {
+            // mapping buffer is left to GC, it may still be used through mapping
+            storage.releasePinned();
+            setBuffer(null);
+        } else if (null != buffer) {
+            storage.release(buffer);
+            setBuffer(null);
+        } else if (null != compressed) {
+            storage.decompressed(compressed.length, 0);
+            compressed = null;
+        }
+    }
+
+    Block retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    // reference is not added once block has been released
+    boolean tryRetain() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // true when there is no reference left, and block can be freed
+    boolean release() {
+        return 0 == references.decrementAndGet();
+    }
+
+    boolean isShared() {
+        return 1 < references.get();
+    }
+
+    boolean isPinned() {
+        return pinned;
+    }
+
+    boolean isInterned() {
+        return interned;
+    }
+
+    void setInterned(boolean interned) {
+        this.interned = interned;
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed index of full blocks, which allows to store identical blocks only once per file system.
+ * <p>
+ * Index does not hold references to blocks, blocks are removed from index once they are released by all files that
+ * use them. Interned blocks must not be modified as long as they are within index.
+ */
+final class BlockIndex {
+
+    // thread safety : synchronized on instance for r/w
+    // buffer equals & hashCode rely on buffer content
+    private final Map<ByteBuffer, Block> blocks;
+
+    BlockIndex() {
+        this.blocks = new HashMap<>();
+    }
+
+    /**
+     * Interns a block
+     *
+     * @param block full block to intern
+     * @return block with same content already in index, with an extra reference added, or {@code block} itself
+     * when there is no such block in index.
+     * @throws IOException if block must be decompressed and storage can't provide a buffer
+     */
+    synchronized Block intern(Block block) throws IOException {
+        // block can't be compressed while it's being interned
+        synchronized (block) {
+            ByteBuffer key = block.buffer().duplicate();
+            Block existing = blocks.get(key);
+            if (existing == block) {
+                return block;
+            }
+            if (null != existing && existing.tryRetain()) {
+                return existing;
+            }
+            // existing block (if any) is being released, and thus replaced
+            blocks.put(key, block);
+            block.setInterned(true);
+            return block;
+        }
+    }
+
+    /**
+     * Removes block from index, when block has been released.
+     *
+     * @param block released block
+     */
+    synchronized void remove(Block block) {
+        // interned blocks are never compressed
+        ByteBuffer key = block.internedBuffer().duplicate();
+        if (blocks.get(key) == block) {
+            blocks.remove(key);
+        }
+        block.setInterned(false);
+    }
+
+    /**
+     * Removes block from index, in order to modify it, which is only possible when block is not shared.
+     *
+     * @param block block to remove from index
+     * @return true if block has been removed from index and can be modified, false if it's shared
+     */
+    synchronized boolean detach(Block block) {
+        if (block.isShared()) {
+            return false;
+        }
+        remove(block);
+        return true;
+    }
+
+    /**
+     * @return number of blocks in index
+     */
+    synchronized int size() {
+        return blocks.size();
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of released blocks, which are reused by later allocations instead of being left to GC (or freed).
+ * <p>
+ * Pool retains at most a fixed number of blocks, blocks released while pool is full are not retained. Pooled blocks
+ * are cleared when reused, since they contain data of previously released blocks. Pool has a single size class : all
+ * blocks are {@link FileData#BLOCK_SIZE} bytes long, mapped regions are never pooled.
+ */
+final class BlockPool {
+
+    private static final byte[] ZEROS = new byte[FileData.BLOCK_SIZE];
+
+    private final int maxBlocks;
+
+    // thread safety : synchronized on instance for r/w
+    private final Deque<ByteBuffer> blocks;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxBlocks maximum number of blocks retained by pool
+     */
+    BlockPool(int maxBlocks) {
+        if (maxBlocks <= 0) {
+            throw new IllegalArgumentException("pool must retain at least one block");
+        }
+        this.maxBlocks = maxBlocks;
+        this.blocks = new ArrayDeque<>();
+    }
+
+    /**
+     * @return pooled block, which content is cleared, null if pool is empty
+     */
+    ByteBuffer poll() {
+        ByteBuffer block;
+        synchronized (this) {
+            block = blocks.poll();
+        }
+        (null == block ? misses : hits).incrementAndGet();
+        if (null != block) {
+            clear(block);
+        }
+        return block;
+    }
+
+    private static void clear(ByteBuffer block) {
+        if (block.hasArray()) {
+            Arrays.fill(block.array(), block.arrayOffset(), block.arrayOffset() + block.capacity(), (byte) 0);
+        } else {
+            ByteBuffer b = block.duplicate();
+            b.clear();
+            b.put(ZEROS, 0, b.capacity());
+        }
+    }
+
+    /**
+     * @param block released block
+     * @return true if block is retained by pool, false if pool is full
+     */
+    synchronized boolean offer(ByteBuffer block) {
+        if (maxBlocks <= blocks.size()) {
+            return false;
+        }
+        // most recently released blocks are reused first
+        blocks.push(block);
+        return true;
+    }
+
+    /**
+     * Removes all blocks from pool
+     *
+     * @return removed blocks
+     */
+    synchronized Deque<ByteBuffer> clear() {
+        Deque<ByteBuffer> result = new ArrayDeque<>(blocks);
+        blocks.clear();
+        return result;
+    }
+
+    /**
+     * @return number of blocks in pool
+     */
+    synchronized int size() {
+        return blocks.size();
+    }
+
+    /**
+     * @return number of allocations served by pool
+     */
+    long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of allocations that could not be served by pool
+     */
+    long misses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,733 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedFileSystemException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Allocates and releases fixed-size blocks used to store file content, each file system has its own storage.
+ */
+abstract class BlockStorage {
+
+    static final long NO_SPILL = 0;
+    static final long UNLIMITED = 0;
+    static final long NO_COMPRESSION = 0;
+
+    // maximum size of files which content is stored inline, when supported by storage
+    static final int INLINE_LIMIT = 256;
+
+    static final long DEFAULT_HOT_TIER_SIZE = 64L * 1024 * 1024;
+    static final long DEFAULT_WARM_TIER_SIZE = 256L * 1024 * 1024;
+
+    // delay between two moves of blocks to lower tiers (in ms)
+    private static final long TIERING_PERIOD = 100;
+
+    // tiered storage : heap (hot), direct buffers (warm) and spill file (cold), blocks are moved back to hot on access
+    enum Tier {
+        HOT, WARM, COLD
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final AtomicBoolean open = new AtomicBoolean(true);
+    // quota on logical size (sum of file sizes) : holes, copies that share blocks, deduplicated and compressed blocks
+    // are charged by their size in files, allocated memory is not limited
+    private final long capacity;
+    private final long spillThreshold;
+    private final SpillFile spillFile; // content of files larger than spill threshold, null when spill is disabled
+    private final BlockIndex index; // full blocks with identical content, null when deduplication is disabled
+    private final BlockPool pool; // released blocks kept for reuse, null when pool is disabled
+
+    private final long compressAfter; // blocks unused for this delay are compressed, until next access
+    private final Set<Block> tracked; // blocks handled by background tasks, null when there is no such task
+    private final ScheduledExecutorService maintenance; // null when there is no background task
+    private volatile long clock;
+
+    private final AtomicLong logicalSize = new AtomicLong();
+    private final AtomicLong allocatedBlocks = new AtomicLong();
+    private final AtomicLong inlineSize = new AtomicLong();
+    private final AtomicLong compressedBlocks = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionTime = new AtomicLong();
+    private final AtomicLong decompressionTime = new AtomicLong();
+
+    // only used by compression task, with lock on deflater
+    private final Deflater deflater;
+    private final byte[] deflated;
+
+    // shared by decompressions, with lock on inflater
+    private final Inflater inflater;
+    private final byte[] inflated;
+
+    protected BlockStorage(Builder builder) {
+        boolean tiered = StorageMode.TIERED == builder.mode;
+        this.capacity = builder.capacity;
+        this.spillThreshold = builder.spillThreshold;
+        // spill file is also used as cold tier
+        this.spillFile = NO_SPILL == spillThreshold && !tiered ? null : new SpillFile();
+        this.index = builder.deduplication ? new BlockIndex() : null;
+        // pooled blocks would not be accounted in tiers
+        int poolBlocks = tiered ? 0 : (int) Math.min(Integer.MAX_VALUE, builder.poolSize / FileData.BLOCK_SIZE);
+        this.pool = 0 == poolBlocks ? null : new BlockPool(poolBlocks);
+        this.compressAfter = builder.compressAfter;
+        this.clock = System.currentTimeMillis();
+        if (NO_COMPRESSION == compressAfter) {
+            this.deflater = null;
+            this.deflated = null;
+            this.inflater = null;
+            this.inflated = null;
+        } else {
+            this.deflater = new Deflater(Deflater.BEST_SPEED);
+            // blocks that do not compress at least by 25% are left uncompressed
+            this.deflated = new byte[FileData.BLOCK_SIZE * 3 / 4];
+            this.inflater = new Inflater();
+            // only used for buffers that are not backed by an array
+            this.inflated = new byte[FileData.BLOCK_SIZE];
+        }
+        if (NO_COMPRESSION == compressAfter && !tiered) {
+            this.tracked = null;
+            this.maintenance = null;
+            return;
+        }
+        this.tracked = Collections.newSetFromMap(new ConcurrentHashMap<Block, Boolean>());
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "memoryfs-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (NO_COMPRESSION != compressAfter) {
+            long period = Math.max(1, compressAfter / 2);
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    compressColdBlocks(System.currentTimeMillis());
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+        if (tiered) {
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    moveToLowerTiers(System.currentTimeMillis());
+                }
+            }, TIERING_PERIOD, TIERING_PERIOD, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static class Builder {
+        private StorageMode mode = StorageMode.HEAP;
+        private long capacity = UNLIMITED;
+        private long spillThreshold = NO_SPILL;
+        private boolean deduplication = false;
+        private long compressAfter = NO_COMPRESSION; // in ms
+        private long poolSize = 0;
+        private long hotTierSize = DEFAULT_HOT_TIER_SIZE;
+        private long warmTierSize = DEFAULT_WARM_TIER_SIZE;
+
+        BlockStorage build() {
+            switch (mode) {
+                case HEAP:
+                    return new HeapStorage(this);
+                case OFF_HEAP:
+                    return new DirectStorage(this);
+                case TIERED:
+                    return new TieredStorage(this);
+                default:
+                    throw new IllegalArgumentException("unsupported storage mode : " + mode);
+            }
+        }
+
+        public Builder mode(StorageMode mode) {
+            if (null == mode) {
+                throw new IllegalArgumentException("storage mode is required");
+            }
+            this.mode = mode;
+            return this;
+        }
+
+        public Builder capacity(long capacity) {
+            if (capacity < 0) {
+                throw new IllegalArgumentException("capacity can't be negative");
+            }
+            this.capacity = capacity;
+            return this;
+        }
+
+        public Builder spillThreshold(long spillThreshold) {
+            if (spillThreshold < 0) {
+                throw new IllegalArgumentException("spill threshold can't be negative");
+            }
+            this.spillThreshold = spillThreshold;
+            return this;
+        }
+
+        public Builder deduplication(boolean deduplication) {
+            this.deduplication = deduplication;
+            return this;
+        }
+
+        public Builder compressAfter(long compressAfter) {
+            if (compressAfter < 0) {
+                throw new IllegalArgumentException("compression delay can't be negative");
+            }
+            this.compressAfter = compressAfter;
+            return this;
+        }
+
+        public Builder poolSize(long poolSize) {
+            if (poolSize < 0) {
+                throw new IllegalArgumentException("pool size can't be negative");
+            }
+            this.poolSize = poolSize;
+            return this;
+        }
+
+        public Builder hotTierSize(long hotTierSize) {
+            if (hotTierSize < 0) {
+                throw new IllegalArgumentException("tier size can't be negative");
+            }
+            this.hotTierSize = hotTierSize;
+            return this;
+        }
+
+        public Builder warmTierSize(long warmTierSize) {
+            if (warmTierSize < 0) {
+                throw new IllegalArgumentException("tier size can't be negative");
+            }
+            this.warmTierSize = warmTierSize;
+            return this;
+        }
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    static BlockStorage create(StorageMode mode) {
+        return builder().mode(mode).build();
+    }
+
+    final ByteBuffer allocate() throws IOException {
+        checkOpen();
+        ByteBuffer block = null == pool ? null : pool.poll();
+        if (null == block) {
+            block = doAllocate();
+        }
+        allocatedBlocks.incrementAndGet();
+        return block;
+    }
+
+    final Block newBlock(boolean spill) throws IOException {
+        Block block = new Block(this, spill ? allocateSpill() : allocate());
+        if (null != tracked && (!spill || StorageMode.TIERED == mode())) {
+            tracked.add(block);
+        }
+        return block;
+    }
+
+    // not reserved, like other blocks : capacity is a quota on file sizes, reserved when mapped region extends file
+    final ByteBuffer allocateMapping(int blocks) {
+        checkOpen();
+        int size = blocks * FileData.BLOCK_SIZE;
+        return StorageMode.HEAP == mode() ? ByteBuffer.allocate(size) : ByteBuffer.allocateDirect(size);
+    }
+
+    final Block newPinnedBlock(ByteBuffer buffer) {
+        allocatedBlocks.incrementAndGet();
+        return new Block(this, buffer, true);
+    }
+
+    // buffer is left to GC since it's part of a mapping
+    final void releasePinned() {
+        allocatedBlocks.decrementAndGet();
+    }
+
+    final boolean shouldSpill(long fileSize) {
+        return NO_SPILL != spillThreshold && spillThreshold < fileSize;
+    }
+
+    final ByteBuffer allocateSpill() throws IOException {
+        checkOpen();
+        if (null == spillFile) {
+            throw new IllegalStateException("spill is not enabled");
+        }
+        ByteBuffer block = spillFile.allocate();
+        allocatedBlocks.incrementAndGet();
+        return block;
+    }
+
+    final void release(ByteBuffer block) {
+        allocatedBlocks.decrementAndGet();
+        if (null == spillFile || !spillFile.release(block)) {
+            if (null == pool || !open.get() || !pool.offer(block)) {
+                doRelease(block);
+            }
+        }
+    }
+
+    final void release(Block block) {
+        if (block.release()) {
+            if (block.isInterned()) {
+                index.remove(block);
+            }
+            if (null != tracked) {
+                tracked.remove(block);
+            }
+            block.free();
+        }
+    }
+
+    /**
+     * @return identical block already stored, or {@code block} itself, which is released otherwise
+     */
+    final Block intern(Block block) throws IOException {
+        // pinned blocks may be modified through their mapping
+        if (null == index || block.isPinned()) {
+            return block;
+        }
+        Block result = index.intern(block);
+        if (result != block) {
+            release(block);
+        }
+        return result;
+    }
+
+    // false when block has to be copied before being modified
+    final boolean isWritable(Block block) {
+        if (block.isInterned()) {
+            return index.detach(block);
+        }
+        return !block.isShared();
+    }
+
+    /**
+     * Reserves logical size before files grow, which is released with {@link #addLogicalSize(long)}
+     *
+     * @throws NoSpaceLeftException if logical size would exceed capacity
+     */
+    final void reserveLogicalSize(long bytes) throws NoSpaceLeftException {
+        if (UNLIMITED == capacity) {
+            logicalSize.addAndGet(bytes);
+            return;
+        }
+        while (true) {
+            long used = logicalSize.get();
+            if (capacity - used < bytes) {
+                throw new NoSpaceLeftException();
+            }
+            if (logicalSize.compareAndSet(used, used + bytes)) {
+                return;
+            }
+        }
+    }
+
+    // space must be reserved before growing
+    final void addLogicalSize(long delta) {
+        logicalSize.addAndGet(delta);
+    }
+
+    final long capacity() {
+        return capacity;
+    }
+
+    // sum of all file sizes
+    final long logicalSize() {
+        return logicalSize.get();
+    }
+
+    final long physicalSize() {
+        return allocatedBlocks.get() * FileData.BLOCK_SIZE + compressedBytes.get() + inlineSize.get();
+    }
+
+    int inlineLimit() {
+        return 0;
+    }
+
+    final void addInlineSize(long delta) {
+        inlineSize.addAndGet(delta);
+    }
+
+    // updated by background tasks (in ms)
+    final long clock() {
+        return clock;
+    }
+
+    final void compressColdBlocks(long now) {
+        List<Block> candidates = new ArrayList<>();
+        synchronized (this) {
+            if (NO_COMPRESSION == compressAfter || !open.get()) {
+                return;
+            }
+            clock = now;
+            for (Block block : tracked) {
+                if (compressAfter <= now - block.lastAccess()) {
+                    candidates.add(block);
+                }
+            }
+        }
+        // blocks are compressed without lock on storage, blocks used or released since then are left as is
+        synchronized (deflater) {
+            if (!open.get()) {
+                return;
+            }
+            long start = cpuTime();
+            for (Block block : candidates) {
+                int length = block.compress(deflater, now, compressAfter, deflated);
+                if (0 <= length) {
+                    compressedBlocks.incrementAndGet();
+                    compressedBytes.addAndGet(length);
+                }
+            }
+            compressionTime.addAndGet(cpuTime() - start);
+        }
+    }
+
+    /**
+     * Decompresses block content into a buffer, directly into its array when buffer is backed by one
+     */
+    final void inflate(byte[] compressed, ByteBuffer target) throws DataFormatException {
+        synchronized (inflater) {
+            checkOpen();
+            byte[] output = target.hasArray() ? target.array() : inflated;
+            int offset = target.hasArray() ? target.arrayOffset() : 0;
+            inflater.reset();
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < FileData.BLOCK_SIZE && !inflater.finished()) {
+                int n = inflater.inflate(output, offset + length, FileData.BLOCK_SIZE - length);
+                if (0 == n && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("truncated compressed content");
+                }
+                length += n;
+            }
+            if (!target.hasArray()) {
+                target.duplicate().put(inflated, 0, length);
+            }
+        }
+    }
+
+    // compressed content of a block has been decompressed or released
+    final void decompressed(int length, long time) {
+        compressedBlocks.decrementAndGet();
+        compressedBytes.addAndGet(-length);
+        decompressionTime.addAndGet(time);
+    }
+
+    final long compressedBlocks() {
+        return compressedBlocks.get();
+    }
+
+    final double compressionRatio() {
+        // both values are not read atomically, thus ratio is only an estimate
+        long blocks = compressedBlocks.get();
+        long bytes = compressedBytes.get();
+        return blocks <= 0 ? 1.0 : (double) bytes / (blocks * FileData.BLOCK_SIZE);
+    }
+
+    final long compressionTime() {
+        return compressionTime.get();
+    }
+
+    final long decompressionTime() {
+        return decompressionTime.get();
+    }
+
+    // wall-clock time when thread cpu time is not available
+    static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    abstract StorageMode mode();
+
+    final SpillFile spillFile() {
+        return spillFile;
+    }
+
+    final BlockIndex index() {
+        return index;
+    }
+
+    final BlockPool pool() {
+        return pool;
+    }
+
+    final synchronized void moveToLowerTiers(long now) {
+        if (null == tracked || !open.get()) {
+            return;
+        }
+        clock = now;
+        moveToLowerTiers(tracked);
+    }
+
+    // least recently used blocks are moved first when tiers are almost full, nothing is done by default
+    void moveToLowerTiers(Iterable<Block> blocks) {
+    }
+
+    // moves an accessed block buffer to hot tier, null when buffer has not been moved
+    ByteBuffer promote(ByteBuffer buffer) {
+        return null;
+    }
+
+    long tierSize(Tier tier) {
+        long cold = null == spillFile ? 0 : spillFile.blockCount();
+        switch (tier) {
+            case COLD:
+                return cold * FileData.BLOCK_SIZE;
+            case HOT:
+                return StorageMode.HEAP == mode() ? (allocatedBlocks.get() - cold) * FileData.BLOCK_SIZE : 0;
+            case WARM:
+                return StorageMode.OFF_HEAP == mode() ? (allocatedBlocks.get() - cold) * FileData.BLOCK_SIZE : 0;
+            default:
+                throw new IllegalArgumentException("unknown tier : " + tier);
+        }
+    }
+
+    final boolean isOpen() {
+        return open.get();
+    }
+
+    void close() throws IOException {
+        open.set(false);
+        if (null != maintenance) {
+            maintenance.shutdownNow();
+        }
+        if (null != deflater) {
+            synchronized (deflater) {
+                // waits for running compression task
+                deflater.end();
+            }
+            synchronized (inflater) {
+                inflater.end();
+            }
+        }
+        if (null != pool) {
+            for (ByteBuffer block : pool.clear()) {
+                doRelease(block);
+            }
+        }
+        if (null != spillFile) {
+            spillFile.close();
+        }
+    }
+
+    private void checkOpen() {
+        if (!open.get()) {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    protected abstract ByteBuffer doAllocate() throws IOException;
+
+    protected abstract void doRelease(ByteBuffer block);
+
+    private static class HeapStorage extends BlockStorage {
+
+        private HeapStorage(Builder builder) {
+            super(builder);
+        }
+
+        @Override
+        protected ByteBuffer doAllocate() {
+            return ByteBuffer.allocate(FileData.BLOCK_SIZE);
+        }
+
+        @Override
+        protected void doRelease(ByteBuffer block) {
+            // left to GC
+        }
+
+        @Override
+        int inlineLimit() {
+            // content of small files is stored in heap anyway
+            return INLINE_LIMIT;
+        }
+
+        @Override
+        StorageMode mode() {
+            return StorageMode.HEAP;
+        }
+    }
+
+    private static class DirectStorage extends BlockStorage {
+
+        private DirectStorage(Builder builder) {
+            super(builder);
+        }
+
+        @Override
+        protected ByteBuffer doAllocate() {
+            return ByteBuffer.allocateDirect(FileData.BLOCK_SIZE);
+        }
+
+        @Override
+        protected void doRelease(ByteBuffer block) {
+            // memory is freed by GC, blocks retained by pool are reused instead
+        }
+
+        @Override
+        StorageMode mode() {
+            return StorageMode.OFF_HEAP;
+        }
+    }
+
+    private static class TieredStorage extends BlockStorage {
+
+        private final long hotLimit; // in blocks
+        private final long warmLimit; // in blocks
+        private final AtomicLong hotBlocks = new AtomicLong();
+        private final AtomicLong warmBlocks = new AtomicLong();
+
+        private TieredStorage(Builder builder) {
+            super(builder);
+            this.hotLimit = builder.hotTierSize / FileData.BLOCK_SIZE;
+            this.warmLimit = builder.warmTierSize / FileData.BLOCK_SIZE;
+        }
+
+        @Override
+        protected ByteBuffer doAllocate() throws IOException {
+            // new blocks are stored in highest tier that is not full
+            if (reserve(hotBlocks, hotLimit)) {
+                return ByteBuffer.allocate(FileData.BLOCK_SIZE);
+            }
+            return allocateBelow(Tier.HOT);
+        }
+
+        private ByteBuffer allocateBelow(Tier tier) throws IOException {
+            if (Tier.HOT == tier && reserve(warmBlocks, warmLimit)) {
+                return ByteBuffer.allocateDirect(FileData.BLOCK_SIZE);
+            }
+            return spillFile().allocate();
+        }
+
+        private static boolean reserve(AtomicLong blocks, long limit) {
+            if (limit < blocks.incrementAndGet()) {
+                blocks.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void doRelease(ByteBuffer block) {
+            // blocks stored in cold tier are released by spill file
+            if (block.isDirect()) {
+                warmBlocks.decrementAndGet();
+            } else {
+                hotBlocks.decrementAndGet();
+            }
+        }
+
+        // buffer has been replaced by a buffer from another tier
+        private void releaseMoved(ByteBuffer block) {
+            if (!spillFile().release(block)) {
+                doRelease(block);
+            }
+        }
+
+        @Override
+        ByteBuffer promote(ByteBuffer buffer) {
+            if (!buffer.isDirect() || !reserve(hotBlocks, hotLimit)) {
+                return null;
+            }
+            ByteBuffer result = ByteBuffer.allocate(FileData.BLOCK_SIZE);
+            result.duplicate().put(buffer.duplicate());
+            releaseMoved(buffer);
+            return result;
+        }
+
+        @Override
+        void moveToLowerTiers(Iterable<Block> blocks) {
+            moveToLowerTier(blocks, Tier.HOT, hotBlocks, hotLimit);
+            moveToLowerTier(blocks, Tier.WARM, warmBlocks, warmLimit);
+        }
+
+        private void moveToLowerTier(Iterable<Block> blocks, Tier tier, AtomicLong tierBlocks, long limit) {
+            // moves blocks when tier is more than 90% full, until it's only 75% full
+            long target = limit * 3 / 4;
+            if (tierBlocks.get() <= limit * 9 / 10) {
+                return;
+            }
+            List<Candidate> candidates = new ArrayList<>();
+            for (Block block : blocks) {
+                ByteBuffer buffer = block.currentBuffer();
+                if (null != buffer && tier == tierOf(buffer)) {
+                    candidates.add(new Candidate(block, block.lastAccess()));
+                }
+            }
+            Collections.sort(candidates);
+            for (Candidate candidate : candidates) {
+                if (tierBlocks.get() <= target) {
+                    return;
+                }
+                try {
+                    ByteBuffer lower = allocateBelow(tier);
+                    ByteBuffer previous = candidate.block.moveTo(lower);
+                    releaseMoved(null == previous ? lower : previous);
+                } catch (IOException e) {
+                    // cold tier is not available, blocks are left where they are
+                    return;
+                }
+            }
+        }
+
+        private Tier tierOf(ByteBuffer buffer) {
+            if (!buffer.isDirect()) {
+                return Tier.HOT;
+            }
+            return spillFile().contains(buffer) ? Tier.COLD : Tier.WARM;
+        }
+
+        @Override
+        long tierSize(Tier tier) {
+            switch (tier) {
+                case HOT:
+                    return hotBlocks.get() * FileData.BLOCK_SIZE;
+                case WARM:
+                    return warmBlocks.get() * FileData.BLOCK_SIZE;
+                default:
+                    return super.tierSize(tier);
+            }
+        }
+
+        @Override
+        StorageMode mode() {
+            return StorageMode.TIERED;
+        }
+
+        // last access time is read once, when candidates are selected
+        private static final class Candidate implements Comparable<Candidate> {
+
+            private final Block block;
+            private final long lastAccess;
+
+            private Candidate(Block block, long lastAccess) {
+                this.block = block;
+                this.lastAccess = lastAccess;
+            }
+
+            @Override
+            public int compareTo(Candidate o) {
+                return Long.compare(lastAccess, o.lastAccess);
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.github.sylvainjuge.memoryfs;
 
+import java.io.IOException;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
@@ -9,6 +10,11 @@ import static java.util.Objects.requireNonNull;
 
 class Entry implements BasicFileAttributes {
 
+    /**
+     * number of children above which children of a directory are indexed by name
+     */
+    static final int INDEX_THRESHOLD = 8;
+
     private final boolean isDirectory;
     private final FileData data; // null for folders
 
@@ -17,6 +23,7 @@ class Entry implements BasicFileAttributes {
     private Entry entries; // null for files
     private Entry next;
     private Entry previous;
+    private ChildIndex index; // null for files and small directories
 
     // As long as this constructor remains private, we can "trust" calling code to provide consistent set of parameters
     // thus, we don't check them (directory has null data, file has non-null data, root has null name)
@@ -32,13 +39,26 @@ class Entry implements BasicFileAttributes {
 
     private Entry addEntry(Entry child) {
         Entry previous = null;
-        Entry current = entries;
-        while (current != null && !current.name.equals(child.name)) {
-            previous = current;
-            current = current.next;
-        }
-        if (current != null) {
-            throw new ConflictException("name conflict : " + child.name);
+        if (null != index) {
+            if (null != index.get(child.name)) {
+                throw new ConflictException("name conflict : " + child.name);
+            }
+            previous = index.last;
+        } else {
+            int count = 0;
+            Entry current = entries;
+            while (current != null && !current.name.equals(child.name)) {
+                previous = current;
+                current = current.next;
+                count++;
+            }
+            if (current != null) {
+                throw new ConflictException("name conflict : " + child.name);
+            }
+            if (INDEX_THRESHOLD <= count) {
+                // directory is not small anymore, lookups use index from now on
+                index = new ChildIndex(entries);
+            }
         }
         child.next = null;
         if (entries == null) {
@@ -49,6 +69,10 @@ class Entry implements BasicFileAttributes {
             child.previous = previous;
         }
         child.parent = this;
+        if (null != index) {
+            index.add(child);
+            index.last = child;
+        }
         return child;
     }
 
@@ -61,10 +85,17 @@ class Entry implements BasicFileAttributes {
     }
 
     static Entry newFile(Entry parent, String name) {
-        return parent.addEntry(new Entry(parent, false, name, FileData.newEmpty()));
+        return newFile(parent, name, FileData.newEmpty());
+    }
+
+    static Entry newFile(Entry parent, String name, FileData data) {
+        return parent.addEntry(new Entry(parent, false, name, data));
     }
 
     Entry getChild(String name) {
+        if (null != index) {
+            return index.get(name);
+        }
         Entry current = entries;
         while (current != null && !current.name.equals(name)) {
             current = current.next;
@@ -100,7 +131,15 @@ class Entry implements BasicFileAttributes {
         if( null != existingEntry){
             throw new ConflictException("name conflict : " + newName);
         }
-        this.name = checkName(newName);
+        checkName(newName);
+        // index of parent is based on name
+        if (null != parent.index) {
+            parent.index.remove(this);
+        }
+        this.name = newName;
+        if (null != parent.index) {
+            parent.index.add(this);
+        }
     }
 
     public void move(Entry newParent){
@@ -121,15 +160,42 @@ class Entry implements BasicFileAttributes {
         }
 
         if( parent != newParent) {
-            delete();
+            unlink();
             newParent.addEntry(this);
         }
     }
 
+    /**
+     * Deletes entry from its parent, and releases file content (including content of files within folders)
+     */
     public void delete() {
         if (null == parent) {
             throw new InvalidRequestException("deleting fs root is not allowed");
         }
+        unlink();
+        release();
+    }
+
+    /**
+     * Releases file content of this entry, and for folders of all entries within it
+     */
+    void release() {
+        if (!isDirectory) {
+            data.release();
+        }
+        for (Entry e = entries; e != null; e = e.next) {
+            e.release();
+        }
+    }
+
+    private void unlink() {
+        ChildIndex parentIndex = parent.index;
+        if (null != parentIndex) {
+            parentIndex.remove(this);
+            if (parentIndex.last == this) {
+                parentIndex.last = previous;
+            }
+        }
         if (previous == null) {
             // remove 1st file in folder
             parent.entries = next;
@@ -138,13 +204,28 @@ class Entry implements BasicFileAttributes {
             }
         } else {
             previous.next = next;
+            if (next != null) {
+                next.previous = previous;
+            }
+        }
+        if (null == parent.entries) {
+            // empty directory is small again
+            parent.index = null;
         }
     }
 
-    public Entry copy(Entry targetParent, String targetName) {
+    public Entry copy(Entry targetParent, String targetName) throws IOException {
         FileData dataCopy = isDirectory ? null : FileData.copy(data);
         Entry entry = new Entry(parent, isDirectory, targetName, dataCopy);
-        targetParent.addEntry(entry);
+        try {
+            targetParent.addEntry(entry);
+        } catch (RuntimeException e) {
+            // copy storage is not used by any entry
+            if (null != dataCopy) {
+                dataCopy.release();
+            }
+            throw e;
+        }
         return entry;
     }
 
@@ -223,5 +304,96 @@ class Entry implements BasicFileAttributes {
         return name;
     }
 
+    // only used for test
+    boolean isIndexed() {
+        return null != index;
+    }
+
+    /**
+     * Index of directory children by name, which avoids to walk list of children for each lookup in large
+     * directories. Uses open addressing with linear probing, removed children are replaced by following children of
+     * same probe sequence, thus lookups never have to skip removed slots.
+     */
+    private static final class ChildIndex {
+
+        private Entry[] table; // capacity is a power of 2, and at least twice number of children
+        private int size;
+        private Entry last; // last child in list of children, where children are added
+
+        /**
+         * @param first first child of list, all its children are indexed
+         */
+        private ChildIndex(Entry first) {
+            this.table = new Entry[4 * INDEX_THRESHOLD];
+            this.size = 0;
+            for (Entry e = first; e != null; e = e.next) {
+                add(e);
+                last = e;
+            }
+        }
+
+        private Entry get(String name) {
+            int mask = table.length - 1;
+            for (int i = slot(name, mask); table[i] != null; i = (i + 1) & mask) {
+                if (table[i].name.equals(name)) {
+                    return table[i];
+                }
+            }
+            return null;
+        }
 
+        /**
+         * @param child child to index, which name must not be indexed yet
+         */
+        private void add(Entry child) {
+            if (table.length <= 2 * (size + 1)) {
+                Entry[] previous = table;
+                table = new Entry[2 * previous.length];
+                for (Entry e : previous) {
+                    if (null != e) {
+                        insert(e);
+                    }
+                }
+            }
+            insert(child);
+            size++;
+        }
+
+        private void insert(Entry child) {
+            int mask = table.length - 1;
+            int i = slot(child.name, mask);
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = child;
+        }
+
+        private void remove(Entry child) {
+            int mask = table.length - 1;
+            int i = slot(child.name, mask);
+            while (table[i] != child) {
+                if (table[i] == null) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = null;
+            size--;
+            // following entries that can't be found anymore are moved to free slot
+            for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+                int k = slot(table[j].name, mask);
+                boolean reachable = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+                if (!reachable) {
+                    table[i] = table[j];
+                    table[j] = null;
+                    i = j;
+                }
+            }
+        }
+
+        private static int slot(String name, int mask) {
+            int h = name.hashCode();
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
 }
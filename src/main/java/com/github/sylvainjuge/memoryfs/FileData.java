@@ -1,57 +1,1503 @@
 package com.github.sylvainjuge.memoryfs;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.ClosedFileSystemException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
+/**
+ * File content, stored as a list of fixed-size blocks that are allocated on demand by a {@link BlockStorage}. Growing
+ * a file only allocates new blocks, existing data is never moved : only the block table has to be resized.
+ */
 final class FileData {
 
-    private final InternalOutputStream stream;
+    static final int BLOCK_SIZE = 4096;
 
-    private FileData(InternalOutputStream stream) {
-        this.stream = stream;
+    private static final BlockStorage DEFAULT_STORAGE = BlockStorage.create(StorageMode.HEAP);
+
+    private static final byte[] ZEROS = new byte[BLOCK_SIZE];
+    private static final byte[] EMPTY = new byte[0];
+
+    // limited by the number of blocks in block table (an array)
+    static final long MAX_SIZE = (long) (Integer.MAX_VALUE - 8) * BLOCK_SIZE;
+
+    private static final long NO_HASH = Long.MIN_VALUE;
+
+    private static final AtomicLongFieldUpdater<FileData> VERSION =
+            AtomicLongFieldUpdater.newUpdater(FileData.class, "version");
+
+    // orders optimistic reads before version check, null when runtime does not provide any
+    private static final MethodHandle LOAD_FENCE = findLoadFence();
+
+    private final BlockStorage storage;
+    private final boolean snapshot; // stable content for readers, not included in storage logical size
+
+    // thread safety : synchronized on instance for r/w
+    private BlockTable table; // shared with copies until modified, null while content is inline
+    private byte[] inline; // content of small files, null when empty or stored in blocks
+    private boolean inlineShared; // true when inline content is shared with snapshots, thus must be copied to be modified
+    private long size;
+    private boolean spilled; // true once size has crossed storage spill threshold, new blocks are then spilled too
+    private boolean released; // true once released, content can't be written anymore
+
+    // thread safety : only incremented with lock on instance, odd while content is being modified, readers do not
+    // lock : they validate content read against version, and read it again with lock on concurrent modification
+    private volatile long version;
+
+    // thread safety : volatile, created with lock on instance
+    private volatile Extras extras; // null until hash, mappings or locks are used
+
+    private FileData(BlockStorage storage, boolean snapshot) {
+        this.storage = storage;
+        this.snapshot = snapshot;
+        this.size = 0;
+    }
+
+    /**
+     * @return state that is rarely used, created on first use. Must be called with lock on instance.
+     */
+    private Extras extras() {
+        Extras result = extras;
+        if (null == result) {
+            result = new Extras();
+            extras = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return byte-range locks of this file, created on first use
+     */
+    FileLockTable locks() {
+        Extras e = extras;
+        FileLockTable result = null == e ? null : e.locks;
+        if (null == result) {
+            synchronized (this) {
+                e = extras();
+                result = e.locks;
+                if (null == result) {
+                    result = new FileLockTable();
+                    e.locks = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Releases locks held by a channel, when channel is closed
+     */
+    void releaseLocks(Channel channel) {
+        Extras e = extras;
+        FileLockTable table = null == e ? null : e.locks;
+        if (null != table) {
+            table.releaseAll(channel);
+        }
+    }
+
+    public synchronized void truncate(long newSize) {
+        boolean started = beginWrite();
+        try {
+            if (newSize < 0) {
+                throw new IllegalArgumentException("can't truncate to negative size");
+            }
+            if (newSize < size) {
+                storage.addLogicalSize(newSize - size);
+                size = newSize;
+                invalidateHashAfter(newSize);
+                if (null == table) {
+                    if (0 == newSize) {
+                        setInline(null);
+                    }
+                    return;
+                }
+                BlockTable t = ownTable();
+                // blocks after end of file are released
+                int newBlockCount = blockCount(newSize);
+                if (isMapped()) {
+                    trimMappings(newBlockCount);
+                }
+                for (int i = newBlockCount; i < t.count; i++) {
+                    release(t.blocks[i]);
+                    t.blocks[i] = null;
+                }
+                t.count = newBlockCount;
+            }
+        } finally {
+            endWrite(started);
+        }
+    }
+
+    /**
+     * Extends file size, added content is a hole that is read as zeros and does not use any storage until written.
+     */
+    synchronized void extend(long newSize) throws IOException {
+        checkNotReleased();
+        if (size < newSize) {
+            write(newSize, EMPTY, 0, 0);
+        }
+    }
+
+    /**
+     * Extends file size up to a position with a hole. Must be called with lock on instance, once storage has been
+     * prepared for new size.
+     */
+    private void extendContent(long newSize) throws IOException {
+        if (null == table) {
+            // inline array may still contain truncated data
+            Arrays.fill(inline, (int) size, (int) newSize, (byte) 0);
+            size = newSize;
+            return;
+        }
+        BlockTable t = ownTable();
+        int lastIndex = blockCount(size) - 1;
+        int lastOffset = (int) (size % BLOCK_SIZE);
+        if (0 < lastOffset && null != t.blocks[lastIndex]) {
+            // last block may still contain truncated data
+            writableBlock(t, lastIndex).put(lastOffset, ZEROS, 0, BLOCK_SIZE - lastOffset);
+        }
+        int newBlockCount = blockCount(newSize);
+        t.ensureCapacity(newBlockCount);
+        t.count = newBlockCount;
+        size = newSize;
+    }
+
+    /**
+     * Releases all file content, which makes file empty.
+     */
+    synchronized void release() {
+        boolean started = beginWrite();
+        try {
+            released = true;
+            if (!snapshot) {
+                storage.addLogicalSize(-size);
+            }
+            if (null != table) {
+                releaseTable(table);
+                table = null;
+            }
+            setInline(null);
+            size = 0;
+            spilled = false;
+            if (null != extras) {
+                extras.mappings = null;
+            }
+            invalidateHash();
+        } finally {
+            endWrite(started);
+        }
+    }
+
+    private void invalidateHash() {
+        invalidateHashAfter(0);
     }
 
-    public void truncate(int newSize) {
-        stream.truncate(newSize);
+    /**
+     * Invalidates known hash when content is modified at or before a position that has been hashed
+     */
+    private void invalidateHashAfter(long position) {
+        Extras e = extras;
+        if (null != e && position < e.hashedSize) {
+            e.hash = 1;
+            e.hashedSize = 0;
+        }
+    }
+
+    /**
+     * @return true if some blocks are mapped, thus pinned. Must be called with lock on instance.
+     */
+    private boolean isMapped() {
+        Extras e = extras;
+        return null != e && null != e.mappings;
+    }
+
+    /**
+     * Starts modification of file content, optimistic reads that overlap modification are then done again with lock.
+     * Must be called with lock on instance.
+     *
+     * @return true if modification is started by this call, false if it was already started by caller
+     */
+    private boolean beginWrite() {
+        if (0 != (version & 1)) {
+            return false;
+        }
+        VERSION.incrementAndGet(this);
+        return true;
+    }
+
+    private void endWrite(boolean started) {
+        if (started) {
+            VERSION.incrementAndGet(this);
+        }
+    }
+
+    /**
+     * @return true if content has not been modified since stamp has been read, thus optimistic read is valid.
+     */
+    private boolean validate(long stamp) {
+        if (0 != (stamp & 1)) {
+            return false;
+        }
+        if (null == LOAD_FENCE) {
+            // java 7 & 8 : no fence available, compare and set also orders previous reads before version check
+            return VERSION.compareAndSet(this, stamp, stamp);
+        }
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+        return version == stamp;
+    }
+
+    private static MethodHandle findLoadFence() {
+        try {
+            // java 9+
+            Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+            return MethodHandles.publicLookup().findStatic(varHandle, "acquireFence", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void releaseTable(BlockTable t) {
+        if (t.release()) {
+            for (int i = 0; i < t.count; i++) {
+                release(t.blocks[i]);
+            }
+        }
+    }
+
+    private void release(Block block) {
+        // holes are not allocated
+        if (null != block) {
+            storage.release(block);
+        }
     }
 
     public InputStream asInputStream() {
-        return new ByteArrayInputStream(stream.internalBuffer(), 0, stream.size());
+        return new BlockInputStream(size(), false);
+    }
+
+    /**
+     * @return input stream that reads a snapshot of current content, snapshot is released when stream is closed
+     */
+    InputStream newSnapshotInputStream() {
+        FileData data = snapshot();
+        return data.new BlockInputStream(data.size(), data != this);
     }
 
     public OutputStream asOutputStream() {
-        return stream;
+        return new AppendOutputStream();
+    }
+
+    /**
+     * @return output stream that either appends, or writes over existing content from start of file
+     */
+    OutputStream newOutputStream(boolean append) {
+        return append ? new AppendOutputStream() : new OverwriteOutputStream();
     }
 
     public long size() {
-        return stream.size();
+        long stamp = version;
+        long result = size;
+        if (validate(stamp)) {
+            return result;
+        }
+        synchronized (this) {
+            return size;
+        }
+    }
+
+    /**
+     * @return true if file content is stored in storage spill file
+     */
+    synchronized boolean isSpilled() {
+        return spilled;
+    }
+
+    // only used for test
+    synchronized Block block(int index) {
+        return null == table ? null : table.blocks[index];
     }
 
-    public static FileData copy(FileData data){
-        return null == data ? null : new FileData(new InternalOutputStream(data.stream));
+    // only used for test
+    synchronized boolean isInline() {
+        return null == table;
+    }
+
+    /**
+     * Reads file data at a given position
+     *
+     * @return number of bytes read, {@code -1} when position is at (or after) end of file.
+     */
+    int read(long position, byte[] dst, int offset, int length) throws IOException {
+        return read(position, dst, offset, null, length);
+    }
+
+    /**
+     * Reads file data at a given position into a buffer, buffer position is advanced by the number of bytes read
+     *
+     * @return number of bytes read, {@code -1} when position is at (or after) end of file.
+     */
+    int read(long position, ByteBuffer dst) throws IOException {
+        if (!dst.hasArray()) {
+            return read(position, null, 0, dst, dst.remaining());
+        }
+        int read = read(position, dst.array(), dst.arrayOffset() + dst.position(), null, dst.remaining());
+        if (0 < read) {
+            dst.position(dst.position() + read);
+        }
+        return read;
+    }
+
+    /**
+     * Reads file data into an array or a buffer, content is read without lock first, then read again with lock when
+     * file has been modified concurrently.
+     */
+    private int read(long position, byte[] dst, int offset, ByteBuffer dstBuffer, int length) throws IOException {
+        checkStorageOpen();
+        int start = null == dstBuffer ? 0 : dstBuffer.position();
+        long stamp = version;
+        if (0 == (stamp & 1)) {
+            try {
+                int read = readContent(position, dst, offset, dstBuffer, length, true);
+                if (validate(stamp)) {
+                    promote(position, read);
+                    return read;
+                }
+            } catch (StaleReadException e) {
+                // content has been modified while being read, or must be decompressed : read again with lock
+            }
+            if (null != dstBuffer) {
+                dstBuffer.position(start);
+            }
+        }
+        synchronized (this) {
+            return readContent(position, dst, offset, dstBuffer, length, false);
+        }
+    }
+
+    /**
+     * Reads a single byte, without lock unless file is modified concurrently
+     *
+     * @return byte value, {@code -1} if position is at or after end of file
+     */
+    int read(long position) throws IOException {
+        checkStorageOpen();
+        long stamp = version;
+        if (0 == (stamp & 1)) {
+            try {
+                int read = readContent(position, true);
+                if (validate(stamp)) {
+                    promote(position, 1);
+                    return read;
+                }
+            } catch (StaleReadException e) {
+                // content has been modified while being read, or must be decompressed : read again with lock
+            }
+        }
+        synchronized (this) {
+            return readContent(position, false);
+        }
+    }
+
+    /**
+     * Reads file data at a given position into a sequence of buffers, each buffer is filled before the next one.
+     * Buffers are read without lock first, like other reads.
+     *
+     * @return number of bytes read, {@code -1} when position is at (or after) end of file.
+     */
+    long read(long position, ByteBuffer[] dsts, int offset, int length) throws IOException {
+        checkStorageOpen();
+        long stamp = version;
+        if (0 == (stamp & 1)) {
+            int[] starts = new int[length];
+            for (int i = 0; i < length; i++) {
+                starts[i] = dsts[offset + i].position();
+            }
+            try {
+                long read = readContent(position, dsts, offset, length, true);
+                if (validate(stamp)) {
+                    promote(position, read);
+                    return read;
+                }
+            } catch (StaleReadException e) {
+                // content has been modified while being read, or must be decompressed : read again with lock
+            }
+            for (int i = 0; i < length; i++) {
+                dsts[offset + i].position(starts[i]);
+            }
+        }
+        synchronized (this) {
+            return readContent(position, dsts, offset, length, false);
+        }
+    }
+
+    /**
+     * Records access of blocks read without lock once read is known to be valid, which keeps them from being
+     * compressed and moves them to a higher tier when they are used repeatedly. Blocks may have been released since,
+     * they are then left as is.
+     */
+    private void promote(long position, long length) {
+        BlockTable t = table;
+        if (null == t || length <= 0) {
+            return;
+        }
+        Block[] blocks = t.blocks;
+        int last = Math.min(blockCount(position + length), blocks.length);
+        for (int i = (int) (position / BLOCK_SIZE); i < last; i++) {
+            Block block = blocks[i];
+            if (null != block) {
+                block.promote();
+            }
+        }
+    }
+
+    /**
+     * Reads a single byte. When read without lock, byte may be stale, and blocks are neither decompressed nor promoted.
+     *
+     * @throws StaleReadException if read without lock and content is not available anymore, or must be decompressed
+     */
+    private int readContent(long position, boolean optimistic) throws IOException {
+        // fields are read once, thus content is at worst stale when read without lock
+        long currentSize = size;
+        BlockTable t = table;
+        byte[] currentInline = inline;
+        if (currentSize <= position) {
+            return -1;
+        }
+        if (null == t) {
+            checkFresh(null != currentInline && position < currentInline.length);
+            return currentInline[(int) position] & 0xff;
+        }
+        Block[] blocks = t.blocks;
+        int index = (int) (position / BLOCK_SIZE);
+        checkFresh(index < blocks.length);
+        Block block = blocks[index];
+        return null == block ? 0 : block.get((int) (position % BLOCK_SIZE), optimistic) & 0xff;
+    }
+
+    private long readContent(long position, ByteBuffer[] dsts, int offset, int length, boolean optimistic)
+            throws IOException {
+        long currentSize = size;
+        if (currentSize <= position) {
+            return -1;
+        }
+        long total = 0;
+        for (int i = offset; i < offset + length && position + total < currentSize; i++) {
+            ByteBuffer dst = dsts[i];
+            if (!dst.hasRemaining()) {
+                continue;
+            }
+            int read;
+            if (dst.hasArray()) {
+                read = readContent(position + total, dst.array(), dst.arrayOffset() + dst.position(), null,
+                        dst.remaining(), optimistic);
+                if (0 < read) {
+                    dst.position(dst.position() + read);
+                }
+            } else {
+                read = readContent(position + total, null, 0, dst, dst.remaining(), optimistic);
+            }
+            if (read < 0) {
+                // file truncated concurrently
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Reads file data into an array or a buffer, content is copied directly to destination, without any temporary
+     * copy. When read without lock, content may be inconsistent, and blocks are neither decompressed nor promoted.
+     *
+     * @throws StaleReadException if read without lock and content is not available anymore, or must be decompressed
+     */
+    private int readContent(long position, byte[] dst, int offset, ByteBuffer dstBuffer, int length,
+                            boolean optimistic) throws IOException {
+        // fields are read once, thus content is at worst stale when read without lock
+        long currentSize = size;
+        BlockTable t = table;
+        byte[] currentInline = inline;
+        if (currentSize <= position) {
+            return -1;
+        }
+        int toRead = (int) Math.min(length, currentSize - position);
+        if (null == t) {
+            checkFresh(null != currentInline && position + toRead <= currentInline.length);
+            if (null == dstBuffer) {
+                System.arraycopy(currentInline, (int) position, dst, offset, toRead);
+            } else {
+                dstBuffer.put(currentInline, (int) position, toRead);
+            }
+            return toRead;
+        }
+        Block[] blocks = t.blocks;
+        checkFresh(blockCount(position + toRead) <= blocks.length);
+        int read = 0;
+        while (read < toRead) {
+            long p = position + read;
+            int blockOffset = (int) (p % BLOCK_SIZE);
+            int n = Math.min(toRead - read, BLOCK_SIZE - blockOffset);
+            Block block = blocks[(int) (p / BLOCK_SIZE)];
+            if (null != dstBuffer) {
+                if (null == block) {
+                    dstBuffer.put(ZEROS, 0, n);
+                } else {
+                    block.get(blockOffset, dstBuffer, n, optimistic);
+                }
+            } else if (null == block) {
+                Arrays.fill(dst, offset + read, offset + read + n, (byte) 0);
+            } else {
+                block.get(blockOffset, dst, offset + read, n, optimistic);
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    /**
+     * Fields read without lock may be inconsistent when file is modified concurrently, they are always consistent
+     * when read with lock.
+     */
+    private static void checkFresh(boolean consistent) {
+        if (!consistent) {
+            throw StaleReadException.INSTANCE;
+        }
+    }
+
+    /**
+     * Writes data at a given position, existing data is overwritten and file is extended when required.
+     */
+    void write(long position, byte[] src, int offset, int length) throws IOException {
+        write(position, src, offset, null, length);
+    }
+
+    /**
+     * Writes data from an array or a buffer, content is copied directly from source, without any temporary copy.
+     */
+    private synchronized void write(long position, byte[] src, int offset, ByteBuffer srcBuffer, int length)
+            throws IOException {
+        checkNotReleased();
+        boolean started = beginWrite();
+        try {
+            long end = position + length;
+            long previousSize = size;
+            long reserved = reserve(end);
+            try {
+                prepareWrite(end);
+                writeContent(position, src, offset, srcBuffer, length);
+            } finally {
+                // space reserved but not written is given back
+                storage.addLogicalSize(size - previousSize - reserved);
+            }
+        } finally {
+            endWrite(started);
+        }
+    }
+
+    /**
+     * Writes data from a buffer at a given position, buffer position is advanced by the number of bytes written
+     *
+     * @return number of bytes written
+     */
+    int write(long position, ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (src.hasArray()) {
+            write(position, src.array(), src.arrayOffset() + src.position(), null, length);
+            src.position(src.position() + length);
+        } else {
+            write(position, null, 0, src, length);
+        }
+        return length;
+    }
+
+    /**
+     * Writes data from a sequence of buffers at a given position. Space and storage are reserved once for all
+     * buffers, thus either all buffers are written, or none of them when there is not enough space.
+     *
+     * @return number of bytes written
+     */
+    synchronized long write(long position, ByteBuffer[] srcs, int offset, int length) throws IOException {
+        checkNotReleased();
+        boolean started = beginWrite();
+        try {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += srcs[i].remaining();
+            }
+            if (0 == total) {
+                return 0;
+            }
+            long end = position + total;
+            long previousSize = size;
+            long reserved = reserve(end);
+            try {
+                prepareWrite(end);
+                long written = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    written += writeContent(position + written, srcs[i]);
+                }
+                return written;
+            } finally {
+                // space reserved but not written is given back
+                storage.addLogicalSize(size - previousSize - reserved);
+            }
+        } finally {
+            endWrite(started);
+        }
+    }
+
+    /**
+     * Reserves space for content written after end of file. Must be called with lock on instance.
+     *
+     * @return number of bytes reserved
+     */
+    private long reserve(long end) throws IOException {
+        checkMaxSize(end);
+        long reserved = Math.max(0, end - size);
+        if (0 < reserved) {
+            storage.reserveLogicalSize(reserved);
+        }
+        return reserved;
+    }
+
+    /**
+     * Chooses storage of content before it's written up to {@code end} : inline content, blocks or spilled blocks.
+     * Must be called with lock on instance.
+     */
+    private void prepareWrite(long end) throws IOException {
+        if (null == table && isInline(Math.max(size, end))) {
+            growInline(Math.max(size, end));
+        } else {
+            ensureBlocks();
+            spillIfLarge(end);
+        }
+    }
+
+    /**
+     * Writes data from a buffer, buffer position is advanced by the number of bytes written. Must be called with lock
+     * on instance, once space is reserved and storage prepared.
+     *
+     * @return number of bytes written
+     */
+    private int writeContent(long position, ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (src.hasArray()) {
+            writeContent(position, src.array(), src.arrayOffset() + src.position(), null, length);
+            src.position(src.position() + length);
+        } else {
+            writeContent(position, null, 0, src, length);
+        }
+        return length;
+    }
+
+    /**
+     * Writes data from an array or a buffer at a given position, existing data is overwritten and file is extended when
+     * required. Must be called with lock on instance, once space is reserved and storage prepared : nothing is reserved
+     * or spilled here.
+     */
+    private void writeContent(long position, byte[] src, int offset, ByteBuffer srcBuffer, int length)
+            throws IOException {
+        if (size < position) {
+            extendContent(position);
+        }
+        invalidateHashAfter(position);
+        if (null == table) {
+            if (null == srcBuffer) {
+                System.arraycopy(src, offset, inline, (int) position, length);
+            } else {
+                srcBuffer.get(inline, (int) position, length);
+            }
+            size = Math.max(size, position + length);
+            return;
+        }
+        BlockTable t = ownTable();
+        int written = 0;
+        while (written < length) {
+            long p = position + written;
+            int index = (int) (p / BLOCK_SIZE);
+            int blockOffset = (int) (p % BLOCK_SIZE);
+            int n = Math.min(length - written, BLOCK_SIZE - blockOffset);
+            if (null == srcBuffer) {
+                blockForAppend(index).put(blockOffset, src, offset + written, n);
+            } else {
+                blockForAppend(index).put(blockOffset, srcBuffer, n);
+            }
+            written += n;
+            if (size < p + n) {
+                size = p + n;
+                if (blockOffset + n == BLOCK_SIZE) {
+                    // appends can't modify a full block anymore
+                    t.blocks[index] = storage.intern(t.blocks[index]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends data from a buffer at end of file. End of file is found with lock held, thus concurrent appends never
+     * overwrite each other.
+     *
+     * @return number of bytes written
+     */
+    synchronized int append(ByteBuffer src) throws IOException {
+        return write(size, src);
+    }
+
+    /**
+     * Appends data from a sequence of buffers at end of file, all buffers are appended at once.
+     *
+     * @return number of bytes written
+     */
+    synchronized long append(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        return write(size, srcs, offset, length);
+    }
+
+    /**
+     * Writes file data to a channel without copying it, channel is given read-only views of file content.
+     *
+     * @return number of bytes written to channel, which is less than {@code count} when end of file is reached or when
+     * channel does not accept more bytes
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long p = position + transferred;
+            int n;
+            ByteBuffer content = null;
+            Block block = null;
+            int blockOffset = (int) (p % BLOCK_SIZE);
+            // lock is only held to find content, target channel is written without lock
+            synchronized (this) {
+                checkStorageOpen();
+                if (size <= p) {
+                    break;
+                }
+                n = (int) Math.min(count - transferred, size - p);
+                if (null == table) {
+                    content = sharedInline((int) p, n);
+                } else {
+                    n = Math.min(n, BLOCK_SIZE - blockOffset);
+                    block = table.blocks[(int) (p / BLOCK_SIZE)];
+                    content = transferredContent(block, blockOffset, n);
+                }
+            }
+            int written;
+            if (null != content) {
+                written = target.write(content.asReadOnlyBuffer());
+            } else {
+                try {
+                    written = block.transferTo(blockOffset, n, target);
+                } finally {
+                    storage.release(block);
+                }
+            }
+            transferred += written;
+            if (written < n) {
+                // target can't accept more bytes
+                break;
+            }
+        }
+        return transferred;
+    }
+
+    /**
+     * Reads data from a channel and writes it in file
+     *
+     * @return number of bytes transferred, which is less than {@code count} when channel has no more bytes available
+     */
+    long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BLOCK_SIZE, Math.max(1, count)));
+        long transferred = 0;
+        while (transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+            if (src.read(buffer) <= 0) {
+                break;
+            }
+            buffer.flip();
+            transferred += write(position + transferred, buffer);
+        }
+        return transferred;
+    }
+
+    /**
+     * Writes file data to an output stream, block content is given directly to stream when possible
+     *
+     * @return number of bytes written to stream
+     */
+    long writeTo(long position, long count, OutputStream out) throws IOException {
+        // content of direct buffers is copied to the same chunk for the whole transfer, allocated on first use
+        byte[] chunk = null;
+        long written = 0;
+        while (written < count) {
+            long p = position + written;
+            int n;
+            ByteBuffer content = null;
+            Block block = null;
+            int blockOffset = (int) (p % BLOCK_SIZE);
+            // lock is only held to find content, stream is written without lock
+            synchronized (this) {
+                checkStorageOpen();
+                if (size <= p) {
+                    break;
+                }
+                n = (int) Math.min(count - written, size - p);
+                if (null == table) {
+                    content = sharedInline((int) p, n);
+                } else {
+                    n = Math.min(n, BLOCK_SIZE - blockOffset);
+                    block = table.blocks[(int) (p / BLOCK_SIZE)];
+                    content = transferredContent(block, blockOffset, n);
+                }
+            }
+            if (null != content && content.hasArray()) {
+                out.write(content.array(), content.arrayOffset() + content.position(), n);
+                written += n;
+                continue;
+            }
+            if (null == chunk) {
+                chunk = new byte[BLOCK_SIZE];
+            }
+            if (null != content) {
+                content.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            } else {
+                try {
+                    block.writeTo(blockOffset, n, out, chunk);
+                } finally {
+                    storage.release(block);
+                }
+            }
+            written += n;
+        }
+        return written;
+    }
+
+    /**
+     * Shares inline content with a reader that does not hold lock, content is then copied by writers before being
+     * modified. Must be called with lock on instance.
+     *
+     * @return buffer that wraps inline content
+     */
+    private ByteBuffer sharedInline(int position, int length) {
+        inlineShared = true;
+        return ByteBuffer.wrap(inline, position, length);
+    }
+
+    /**
+     * Finds content of a block to be written to a foreign channel or stream without lock. Must be called with lock on
+     * instance.
+     *
+     * @return buffer that can be read without lock, null when block content has to be read through block itself, which
+     * is then retained and must be released once written
+     */
+    private static ByteBuffer transferredContent(Block block, int blockOffset, int length) throws IOException {
+        if (null == block) {
+            return ByteBuffer.wrap(ZEROS, 0, length);
+        }
+        if (block.isPinned()) {
+            // mapped buffer is never moved or reused, even once block is released
+            ByteBuffer content = block.buffer().duplicate();
+            content.limit(blockOffset + length);
+            content.position(blockOffset);
+            return content;
+        }
+        block.retain();
+        return null;
+    }
+
+    /**
+     * Copies data from a file to another, full blocks are shared when both files use the same storage and positions
+     * are aligned on block boundaries, other data is copied.
+     *
+     * @return number of bytes copied, which is less than {@code count} when end of source is reached
+     */
+    static long transfer(FileData src, long srcPosition, FileData dst, long dstPosition, long count) throws IOException {
+        long transferred = dst.share(src, srcPosition, dstPosition, count);
+        byte[] buffer = new byte[BLOCK_SIZE];
+        while (transferred < count) {
+            int read = src.read(srcPosition + transferred, buffer, 0, (int) Math.min(BLOCK_SIZE, count - transferred));
+            if (read <= 0) {
+                break;
+            }
+            dst.write(dstPosition + transferred, buffer, 0, read);
+            transferred += read;
+        }
+        return transferred;
+    }
+
+    /**
+     * Copies data from a file at end of another, with the same sharing as
+     * {@link #transfer(FileData, long, FileData, long, long)}. Source content is copied from a snapshot, thus lock on
+     * destination is never held while waiting for source.
+     *
+     * @return number of bytes copied
+     */
+    static long transferToEnd(FileData src, long srcPosition, FileData dst, long count) throws IOException {
+        FileData snapshot = src.snapshot();
+        // mapped data has no snapshot, a copy is used instead
+        FileData source = snapshot == src ? copy(src) : snapshot;
+        try {
+            synchronized (dst) {
+                return transfer(source, srcPosition, dst, dst.size, count);
+            }
+        } finally {
+            source.release();
+        }
+    }
+
+    /**
+     * Shares full blocks of another file, which replace data of this file
+     *
+     * @return number of bytes shared
+     */
+    private long share(FileData src, long srcPosition, long position, long count) throws IOException {
+        if (src == this || src.storage != storage || 0 != srcPosition % BLOCK_SIZE || 0 != position % BLOCK_SIZE) {
+            return 0;
+        }
+        Block[] blocks;
+        boolean srcSpilled;
+        synchronized (src) {
+            // mapped blocks can't be shared
+            if (null == src.table || src.size <= srcPosition || src.isMapped()) {
+                return 0;
+            }
+            blocks = new Block[(int) (Math.min(count, src.size - srcPosition) / BLOCK_SIZE)];
+            int first = (int) (srcPosition / BLOCK_SIZE);
+            for (int i = 0; i < blocks.length; i++) {
+                Block block = src.table.blocks[first + i];
+                blocks[i] = null == block ? null : block.retain();
+            }
+            srcSpilled = src.spilled;
+        }
+        int shared = 0;
+        try {
+            synchronized (this) {
+                checkNotReleased();
+                boolean started = beginWrite();
+                try {
+                    if (0 == blocks.length || isMapped()) {
+                        return 0;
+                    }
+                    long end = position + (long) blocks.length * BLOCK_SIZE;
+                    // spilled files only use blocks stored in spill file
+                    if (srcSpilled != (spilled || storage.shouldSpill(Math.max(size, end)))) {
+                        return 0;
+                    }
+                    checkMaxSize(end);
+                    extend(position);
+                    if (size < end) {
+                        storage.reserveLogicalSize(end - size);
+                    }
+                    ensureBlocks();
+                    spillIfLarge(end);
+                    BlockTable t = ownTable();
+                    int first = (int) (position / BLOCK_SIZE);
+                    t.ensureCapacity(first + blocks.length);
+                    for (; shared < blocks.length; shared++) {
+                        if (first + shared < t.count) {
+                            release(t.blocks[first + shared]);
+                        }
+                        t.blocks[first + shared] = blocks[shared];
+                    }
+                    t.count = Math.max(t.count, first + blocks.length);
+                    invalidateHashAfter(position);
+                    size = Math.max(size, end);
+                    return end - position;
+                } finally {
+                    endWrite(started);
+                }
+            }
+        } finally {
+            // blocks that are not shared are released
+            for (int i = shared; i < blocks.length; i++) {
+                release(blocks[i]);
+            }
+        }
+    }
+
+    /**
+     * Writes a single byte, without any temporary array
+     */
+    synchronized void write(long position, byte b) throws IOException {
+        checkNotReleased();
+        boolean started = beginWrite();
+        try {
+            if (size <= position) {
+                extend(position);
+                append(b);
+                return;
+            }
+            invalidateHashAfter(position);
+            if (null == table) {
+                growInline(size);
+                inline[(int) position] = b;
+            } else {
+                writableBlock(ownTable(), (int) (position / BLOCK_SIZE)).put((int) (position % BLOCK_SIZE), b);
+            }
+        } finally {
+            endWrite(started);
+        }
+    }
+
+    /**
+     * Appends a single byte, without any temporary array
+     */
+    synchronized void append(byte b) throws IOException {
+        checkNotReleased();
+        boolean started = beginWrite();
+        try {
+            checkMaxSize(size + 1);
+            storage.reserveLogicalSize(1);
+            boolean written = false;
+            try {
+                if (null == table && isInline(size + 1)) {
+                    growInline(size + 1);
+                    inline[(int) size] = b;
+                } else {
+                    ensureBlocks();
+                    spillIfLarge(size + 1);
+                    int index = (int) (size / BLOCK_SIZE);
+                    int blockOffset = (int) (size % BLOCK_SIZE);
+                    blockForAppend(index).put(blockOffset, b);
+                    if (blockOffset + 1 == BLOCK_SIZE) {
+                        // appends can't modify a full block anymore
+                        table.blocks[index] = storage.intern(table.blocks[index]);
+                    }
+                }
+                size++;
+                written = true;
+            } finally {
+                if (!written) {
+                    // space reserved but not written is given back
+                    storage.addLogicalSize(-1);
+                }
+            }
+        } finally {
+            endWrite(started);
+        }
+    }
+
+    synchronized void append(byte[] src, int offset, int length) throws IOException {
+        write(size, src, offset, length);
+    }
+
+    private boolean isInline(long newSize) {
+        return newSize <= storage.inlineLimit() && !storage.shouldSpill(newSize);
+    }
+
+    /**
+     * Ensures inline content can store {@code newSize} bytes and may be modified, content shared with snapshots is
+     * copied first.
+     */
+    private void growInline(long newSize) {
+        if (null == inline || inline.length < newSize) {
+            int capacity = null == inline ? 0 : inline.length;
+            capacity = (int) Math.max(newSize, Math.min(storage.inlineLimit(), capacity * 2));
+            setInline(null == inline ? new byte[capacity] : Arrays.copyOf(inline, capacity));
+        } else if (inlineShared) {
+            setInline(inline.clone());
+        }
+    }
+
+    private void setInline(byte[] newInline) {
+        if (!snapshot) {
+            // inline content of snapshots is only included in storage size of snapshotted data
+            storage.addInlineSize((null == newInline ? 0 : newInline.length) - (null == inline ? 0 : inline.length));
+        }
+        inline = newInline;
+        inlineShared = false;
+    }
+
+    /**
+     * Moves inline content to blocks, if any
+     */
+    private void ensureBlocks() throws IOException {
+        if (null != table) {
+            return;
+        }
+        BlockTable t = new BlockTable(1);
+        if (0 < size) {
+            Block block = storage.newBlock(false);
+            block.put(0, inline, 0, (int) size);
+            t.blocks[0] = block;
+            t.count = 1;
+        }
+        table = t;
+        setInline(null);
+    }
+
+    /**
+     * Moves blocks to spill file once file size crosses spill threshold, whether file grows by append or extension.
+     */
+    private void spillIfLarge(long newSize) throws IOException {
+        if (!spilled && storage.shouldSpill(newSize)) {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException {
+        BlockTable t = ownTable();
+        for (int i = 0; i < t.count; i++) {
+            // mapped blocks are left in place
+            if (null != t.blocks[i] && !t.blocks[i].isPinned()) {
+                Block block = storage.newBlock(true);
+                t.blocks[i].copyTo(block);
+                storage.release(t.blocks[i]);
+                t.blocks[i] = block;
+            }
+        }
+        spilled = true;
+    }
+
+    private Block blockForAppend(int index) throws IOException {
+        BlockTable t = ownTable();
+        if (index < t.count) {
+            return writableBlock(t, index);
+        }
+        t.ensureCapacity(index + 1);
+        Block block = storage.newBlock(spilled);
+        t.blocks[index] = block;
+        t.count = index + 1;
+        return block;
+    }
+
+    /**
+     * @return block table, which is copied first if it is shared
+     */
+    private BlockTable ownTable() {
+        BlockTable t = table;
+        if (t.isShared()) {
+            BlockTable copy = new BlockTable(t.count);
+            for (int i = 0; i < t.count; i++) {
+                copy.blocks[i] = null == t.blocks[i] ? null : t.blocks[i].retain();
+            }
+            copy.count = t.count;
+            releaseTable(t);
+            table = copy;
+            t = copy;
+        }
+        return t;
+    }
+
+    /**
+     * @return block, which is copied first if it can't be modified in place
+     */
+    private Block writableBlock(BlockTable t, int index) throws IOException {
+        Block block = t.blocks[index];
+        if (null == block) {
+            // hole is allocated when written, spill file may provide blocks with stale content
+            block = storage.newBlock(spilled);
+            block.put(0, ZEROS, 0, BLOCK_SIZE);
+            t.blocks[index] = block;
+        } else if (!storage.isWritable(block)) {
+            Block copy = storage.newBlock(spilled);
+            block.copyTo(copy);
+            storage.release(block);
+            t.blocks[index] = copy;
+            block = copy;
+        }
+        return block;
+    }
+
+    /**
+     * @return copy of block table, with copies of mapped blocks
+     */
+    private BlockTable unpinnedTable() throws IOException {
+        BlockTable copy = new BlockTable(table.count);
+        try {
+            for (int i = 0; i < table.count; i++) {
+                Block block = table.blocks[i];
+                if (null != block && block.isPinned()) {
+                    Block unpinned = storage.newBlock(spilled);
+                    block.copyTo(unpinned);
+                    block = unpinned;
+                } else if (null != block) {
+                    block.retain();
+                }
+                copy.blocks[i] = block;
+                copy.count = i + 1;
+            }
+        } catch (IOException e) {
+            releaseTable(copy);
+            throw e;
+        }
+        return copy;
+    }
+
+    /**
+     * Maps file content into a buffer that shares storage with file until it is truncated or released, even when
+     * read-only : channels that read a snapshot must map file data itself. Regions must not partially overlap.
+     *
+     * @return buffer of {@code size} bytes, read-only unless {@code writable}
+     */
+    synchronized ByteBuffer map(long position, int size, boolean writable) throws IOException {
+        checkNotReleased();
+        boolean started = beginWrite();
+        try {
+            if (position < 0 || size < 0) {
+                throw new IllegalArgumentException("negative position or size not allowed");
+            }
+            long end = position + size;
+            if (this.size < end) {
+                if (!writable) {
+                    throw new IllegalArgumentException("read-only region can't go beyond end of file");
+                }
+                extend(end);
+            }
+            ByteBuffer result;
+            if (0 == size) {
+                result = ByteBuffer.allocate(0);
+            } else {
+                int first = (int) (position / BLOCK_SIZE);
+                int count = blockCount(end) - first;
+                if (Integer.MAX_VALUE / BLOCK_SIZE < count) {
+                    throw new IllegalArgumentException("region too large to be mapped : " + size);
+                }
+                Mapping mapping = mapping(first, count);
+                int offset = (int) (position - (long) mapping.firstBlock * BLOCK_SIZE);
+                result = mapping.buffer.duplicate();
+                result.limit(offset + size);
+                result.position(offset);
+                result = result.slice();
+            }
+            return writable ? result : result.asReadOnlyBuffer();
+        } finally {
+            endWrite(started);
+        }
+    }
+
+    /**
+     * @return mapping that contains blocks, blocks are mapped if there is no such mapping
+     */
+    private Mapping mapping(int first, int count) throws IOException {
+        if (isMapped()) {
+            for (Mapping mapping : extras.mappings) {
+                if (mapping.firstBlock <= first && first + count <= mapping.firstBlock + mapping.blockCount) {
+                    return mapping;
+                }
+            }
+        }
+        ensureBlocks();
+        BlockTable t = ownTable();
+        for (int i = first; i < first + count; i++) {
+            if (null != t.blocks[i] && t.blocks[i].isPinned()) {
+                throw new IOException("region partially overlaps a mapped region");
+            }
+        }
+        ByteBuffer buffer = storage.allocateMapping(count);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit((i + 1) * BLOCK_SIZE);
+            slice.position(i * BLOCK_SIZE);
+            Block pinned = storage.newPinnedBlock(slice.slice());
+            Block block = t.blocks[first + i];
+            if (null != block) {
+                block.copyTo(pinned);
+                storage.release(block);
+            }
+            t.blocks[first + i] = pinned;
+        }
+        Mapping mapping = new Mapping(first, count, buffer);
+        Extras e = extras();
+        if (null == e.mappings) {
+            e.mappings = new ArrayList<>();
+        }
+        e.mappings.add(mapping);
+        return mapping;
+    }
+
+    /**
+     * Removes blocks after end of file from mappings, since they are released
+     */
+    private void trimMappings(int blockCount) {
+        Iterator<Mapping> it = extras.mappings.iterator();
+        while (it.hasNext()) {
+            Mapping mapping = it.next();
+            mapping.blockCount = Math.min(mapping.blockCount, blockCount - mapping.firstBlock);
+            if (mapping.blockCount <= 0) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Snapshots read by open channels and streams may outlive their file system, their content can't be read anymore
+     * once storage is closed.
+     */
+    private void checkStorageOpen() throws ClosedChannelException {
+        if (!storage.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Ensures content may be written, which is not allowed once data is released, since it would use storage that is
+     * never released again. Must be called with lock on instance.
+     */
+    private void checkNotReleased() throws DeletedFileException {
+        if (released && !storage.isOpen()) {
+            throw new ClosedFileSystemException();
+        }
+        if (released) {
+            throw new DeletedFileException();
+        }
+    }
+
+    private static void checkMaxSize(long newSize) throws IOException {
+        if (MAX_SIZE < newSize) {
+            throw new IOException("file size can't exceed " + MAX_SIZE + " bytes");
+        }
+    }
+
+    private static int blockCount(long size) {
+        return (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    /**
+     * Copies file data, copy shares its content with original data until one of them is modified.
+     *
+     * @return copy of data, null if data is null
+     */
+    public static FileData copy(FileData data) throws IOException {
+        if (null == data) {
+            return null;
+        }
+        FileData copy = new FileData(data.storage, false);
+        synchronized (data) {
+            if (null != data.table) {
+                copy.table = data.isMapped() ? data.unpinnedTable() : data.table.retain();
+            }
+            try {
+                copy.storage.reserveLogicalSize(data.size);
+            } catch (IOException e) {
+                if (null != copy.table) {
+                    copy.releaseTable(copy.table);
+                }
+                throw e;
+            }
+            if (null == copy.table && 0 < data.size) {
+                copy.setInline(Arrays.copyOf(data.inline, (int) data.size));
+            }
+            copy.size = data.size;
+            copy.spilled = data.spilled;
+            if (!data.isMapped()) {
+                copy.copyHash(data);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Creates a snapshot of file content, which is not modified by later writes to this data. Snapshot shares storage
+     * with this data until either of them is modified, and has to be released once not used anymore.
+     *
+     * @return snapshot of current file content, which must not be modified, or this data itself when it's mapped
+     */
+    synchronized FileData snapshot() {
+        if (isMapped()) {
+            return this;
+        }
+        FileData result = new FileData(storage, true);
+        if (null != table) {
+            result.table = table.retain();
+        } else if (0 < size) {
+            // inline content is shared, and only included in storage size of this data
+            result.inline = inline;
+            inlineShared = true;
+        }
+        result.size = size;
+        result.spilled = spilled;
+        result.copyHash(this);
+        return result;
+    }
+
+    // must be called with lock on both instances
+    private void copyHash(FileData data) {
+        Extras e = data.extras;
+        if (null != e && 0 < e.hashedSize) {
+            Extras copy = extras();
+            copy.hash = e.hash;
+            copy.hashedSize = e.hashedSize;
+        }
     }
 
     public static FileData newEmpty() {
-        return new FileData(new InternalOutputStream());
+        return newEmpty(DEFAULT_STORAGE);
+    }
+
+    public static FileData newEmpty(BlockStorage storage) {
+        return new FileData(storage, false);
     }
 
     // only used for test, may be dropped unless used somewhere else
     public static FileData fromData(byte[] data) {
-        return new FileData(new InternalOutputStream(data));
+        FileData result = newEmpty();
+        try {
+            result.append(data, 0, data.length);
+        } catch (IOException e) {
+            // default heap storage never fails to allocate
+            throw new IllegalStateException(e);
+        }
+        return result;
     }
 
-    // Hashcode and equals are rather "costly" since they naively read the whole buffer
-
-    // Note : if hashcode is called frequently without data change, we could avoid re-computing value
-    // as long as data is not rewritten.
-    // for equals, we could short-circuit wich cached hash code when available
-
     @Override
-    public int hashCode() {
-        return Arrays.hashCode(stream.internalBuffer());
+    public synchronized int hashCode() {
+        // same value as Arrays.hashCode(byte[]) on file content, only data after hashed size is read
+        if (isMapped()) {
+            // content may have been modified through mappings
+            invalidateHash();
+        }
+        Extras e = extras;
+        if (null == e && 0 == size) {
+            return 1;
+        }
+        e = extras();
+        if (e.hashedSize < size) {
+            int result = e.hash;
+            byte[] block = new byte[BLOCK_SIZE];
+            long position = e.hashedSize;
+            int read;
+            while (0 < (read = readFully(position, block))) {
+                for (int j = 0; j < read; j++) {
+                    result = 31 * result + block[j];
+                }
+                position += read;
+            }
+            e.hash = result;
+            e.hashedSize = size;
+        }
+        return e.hash;
+    }
+
+    /**
+     * @return hash code when it's already known, {@link #NO_HASH} otherwise
+     */
+    private synchronized long knownHash() {
+        Extras e = extras;
+        if (null == e) {
+            return 0 == size ? 1 : NO_HASH;
+        }
+        return null == e.mappings && e.hashedSize == size ? e.hash : NO_HASH;
     }
 
     @Override
@@ -60,38 +1506,257 @@ final class FileData {
             return false;
         }
         FileData other = (FileData) o;
-        return Arrays.equals(stream.internalBuffer(), other.stream.internalBuffer());
+        if (this == other) {
+            return true;
+        }
+        if (size() != other.size()) {
+            return false;
+        }
+        long thisHash = knownHash();
+        long otherHash = other.knownHash();
+        if (NO_HASH != thisHash && NO_HASH != otherHash && thisHash != otherHash) {
+            return false;
+        }
+        byte[] thisBlock = new byte[BLOCK_SIZE];
+        byte[] otherBlock = new byte[BLOCK_SIZE];
+        long position = 0;
+        while (true) {
+            int thisRead = readFully(position, thisBlock);
+            int otherRead = other.readFully(position, otherBlock);
+            if (thisRead != otherRead) {
+                return false;
+            }
+            if (thisRead < 0) {
+                return true;
+            }
+            for (int i = 0; i < thisRead; i++) {
+                if (thisBlock[i] != otherBlock[i]) {
+                    return false;
+                }
+            }
+            position += thisRead;
+        }
+    }
+
+    private int readFully(long position, byte[] dst) {
+        try {
+            return read(position, dst, 0, dst.length);
+        } catch (IOException e) {
+            // may only happen when compressed content can't be decompressed
+            throw new IllegalStateException(e);
+        }
     }
 
-    private static class InternalOutputStream extends ByteArrayOutputStream {
+    /**
+     * Output stream that appends data at end of file
+     */
+    private class AppendOutputStream extends OutputStream {
 
-        private InternalOutputStream() {
-            super();
+        @Override
+        public void write(int b) throws IOException {
+            append((byte) b);
         }
 
-        private InternalOutputStream(InternalOutputStream data){
-            super(data.count);
-            count = data.count;
-            System.arraycopy(data.buf, 0, buf, 0, data.count);
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || b.length < off + len) {
+                throw new IndexOutOfBoundsException();
+            }
+            append(b, off, len);
         }
+    }
+
+    /**
+     * Output stream that writes over existing content, starting at beginning of file
+     */
+    private class OverwriteOutputStream extends OutputStream {
+
+        private long position;
 
-        private InternalOutputStream(byte[] data) {
-            super(data.length);
-            count = data.length;
-            System.arraycopy(data, 0, buf, 0, data.length);
+        @Override
+        public void write(int b) throws IOException {
+            FileData.this.write(position, (byte) b);
+            position++;
         }
 
-        private byte[] internalBuffer() {
-            return buf;
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || b.length < off + len) {
+                throw new IndexOutOfBoundsException();
+            }
+            FileData.this.write(position, b, off, len);
+            position += len;
         }
+    }
 
-        private void truncate(int newSize) {
-            if (newSize < 0) {
-                throw new IllegalArgumentException("can't truncate to negative size");
+    /**
+     * Input stream that reads file content, up to file size when it has been created
+     */
+    private class BlockInputStream extends InputStream {
+
+        private final long limit;
+        private final boolean release;
+        private long position;
+        private long mark;
+        private boolean closed;
+
+        private BlockInputStream(long limit, boolean release) {
+            this.limit = limit;
+            this.release = release;
+            this.position = 0;
+            this.mark = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkOpen();
+            if (limit <= position) {
+                return -1;
             }
-            if (newSize < count) {
-                count = newSize;
+            int read = FileData.this.read(position);
+            if (0 <= read) {
+                position++;
             }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || b.length < off + len) {
+                throw new IndexOutOfBoundsException();
+            }
+            checkOpen();
+            if (limit <= position) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int read = FileData.this.read(position, b, off, (int) Math.min(len, limit - position));
+            if (0 < read) {
+                position += read;
+            }
+            return read;
+        }
+
+        /**
+         * Writes remaining content to an output stream, overrides {@code InputStream.transferTo} when available
+         *
+         * @return number of bytes written
+         */
+        public long transferTo(OutputStream out) throws IOException {
+            checkOpen();
+            long transferred = writeTo(position, limit - position, out);
+            position += transferred;
+            return transferred;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkOpen();
+            long skipped = Math.max(0, Math.min(n, limit - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            checkOpen();
+            return (int) Math.min(Integer.MAX_VALUE, limit - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            position = mark;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (release && !closed) {
+                release();
+            }
+            closed = true;
+        }
+
+        private synchronized void checkOpen() throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+        }
+    }
+
+    /**
+     * State that most files never use, allocated on first use to keep instances small
+     */
+    private static final class Extras {
+
+        private int hash = 1; // hash of content up to hashedSize, extended by appends
+        private long hashedSize;
+        private List<Mapping> mappings; // mapped blocks are pinned, null when file has never been mapped
+
+        // thread safety : volatile, created with lock on file data
+        private volatile FileLockTable locks; // null when file has never been locked
+    }
+
+    /**
+     * Mapped region, which buffer holds content of pinned blocks
+     */
+    private static final class Mapping {
+
+        private final int firstBlock;
+        private int blockCount;
+        private final ByteBuffer buffer;
+
+        private Mapping(int firstBlock, int blockCount, ByteBuffer buffer) {
+            this.firstBlock = firstBlock;
+            this.blockCount = blockCount;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Table of blocks, which may be shared by several copies of the same data and then must not be modified.
+     */
+    private static final class BlockTable {
+
+        private final AtomicInteger references;
+        private Block[] blocks;
+        private int count;
+
+        private BlockTable(int capacity) {
+            this.references = new AtomicInteger(1);
+            this.blocks = new Block[capacity];
+            this.count = 0;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (blocks.length < capacity) {
+                // only references to blocks are copied here
+                blocks = Arrays.copyOf(blocks, Math.max(capacity, blocks.length * 2));
+            }
+        }
+
+        private BlockTable retain() {
+            references.incrementAndGet();
+            return this;
+        }
+
+        private boolean release() {
+            return 0 == references.decrementAndGet();
+        }
+
+        private boolean isShared() {
+            return 1 < references.get();
         }
     }
 }
@@ -0,0 +1,31 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+
+/**
+ * Channel on file data, which allows transfers between memory channels to share storage instead of copying data.
+ */
+interface FileDataChannel {
+
+    /**
+     * Writes data of another file at channel position, channel position is advanced by the number of bytes written
+     *
+     * @param src         source data
+     * @param srcPosition position in source where to start reading
+     * @param count       maximum number of bytes to write
+     * @return number of bytes written
+     * @throws IOException if channel is closed, or storage is not able to store data
+     */
+    long write(FileData src, long srcPosition, long count) throws IOException;
+
+    /**
+     * Reads data at channel position into another file, channel position is advanced by the number of bytes read
+     *
+     * @param dst         destination data
+     * @param dstPosition position in destination where to start writing
+     * @param count       maximum number of bytes to read
+     * @return number of bytes read
+     * @throws IOException if channel is closed, or storage is not able to store data
+     */
+    long read(FileData dst, long dstPosition, long count) throws IOException;
+}
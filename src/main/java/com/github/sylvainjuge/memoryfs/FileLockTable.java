@@ -0,0 +1,291 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Byte-range locks of a single file, which may be either shared or exclusive.
+ * <p>
+ * Each channel behaves like a distinct process : a lock that overlaps a lock held by another channel has to wait
+ * until it's released (unless both locks are shared), while a lock that overlaps a lock held by the same channel is
+ * not allowed. Table is only synchronized on itself, thus locking a file never waits for other files.
+ * <p>
+ * Locks requested by asynchronous channels do not block any thread while they wait : they are queued, and acquired
+ * by the thread that releases overlapping locks.
+ */
+final class FileLockTable {
+
+    /**
+     * Lock request that waits without blocking a thread, notified without lock on table
+     */
+    interface Waiter {
+
+        /**
+         * @param lock lock acquired once overlapping locks are released
+         */
+        void acquired(FileLock lock);
+
+        /**
+         * @param failure reason why lock can't be acquired, {@link AsynchronousCloseException} when channel is closed
+         *                while waiting
+         */
+        void failed(Throwable failure);
+    }
+
+    // thread safety : synchronized on instance for r/w
+    private final List<RangeLock> locks;
+    private final List<QueuedLock> queue; // in request order
+
+    FileLockTable() {
+        this.locks = new ArrayList<>();
+        this.queue = new ArrayList<>();
+    }
+
+    /**
+     * Acquires a lock, if it does not overlap locks held by other channels
+     *
+     * @param channel  channel that acquires lock, either a {@link FileChannel} or an {@link AsynchronousFileChannel}
+     * @param position start of locked range
+     * @param size     size of locked range
+     * @param shared   true for a shared lock, false for an exclusive lock
+     * @return acquired lock, null if it overlaps a lock held by another channel
+     * @throws OverlappingFileLockException if lock overlaps a lock already held by this channel
+     */
+    synchronized FileLock tryLock(Channel channel, long position, long size, boolean shared) {
+        checkRange(position, size);
+        for (RangeLock lock : locks) {
+            if (!lock.overlaps(position, size)) {
+                continue;
+            }
+            if (lock.acquiredBy() == channel) {
+                throw new OverlappingFileLockException();
+            }
+            if (!shared || !lock.isShared()) {
+                return null;
+            }
+        }
+        RangeLock lock = channel instanceof FileChannel
+                ? new RangeLock(this, (FileChannel) channel, position, size, shared)
+                : new RangeLock(this, (AsynchronousFileChannel) channel, position, size, shared);
+        locks.add(lock);
+        return lock;
+    }
+
+    /**
+     * Acquires a lock, waits until overlapping locks held by other channels are released
+     *
+     * @return acquired lock
+     * @throws FileLockInterruptionException if thread is interrupted while waiting
+     * @throws AsynchronousCloseException    if channel is closed while waiting
+     * @see #tryLock(Channel, long, long, boolean)
+     */
+    synchronized FileLock lock(Channel channel, long position, long size, boolean shared) throws IOException {
+        FileLock lock;
+        while (null == (lock = tryLock(channel, position, size, shared))) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FileLockInterruptionException();
+            }
+            if (!channel.isOpen()) {
+                throw new AsynchronousCloseException();
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Acquires a lock, or queues request until overlapping locks held by other channels are released
+     *
+     * @param waiter notified once queued lock is acquired
+     * @return acquired lock, null if request is queued
+     * @see #tryLock(Channel, long, long, boolean)
+     */
+    synchronized FileLock lock(Channel channel, long position, long size, boolean shared, Waiter waiter) {
+        FileLock lock = tryLock(channel, position, size, shared);
+        if (null == lock) {
+            queue.add(new QueuedLock(channel, position, size, shared, waiter));
+        }
+        return lock;
+    }
+
+    /**
+     * Removes a queued request, which waiter is then never notified
+     *
+     * @param waiter waiter of request
+     * @return true if request has been removed, false if it's already completed
+     */
+    synchronized boolean cancel(Waiter waiter) {
+        Iterator<QueuedLock> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().waiter == waiter) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases all locks held by a channel, when channel is closed : its queued requests fail.
+     *
+     * @param channel channel
+     */
+    void releaseAll(Channel channel) {
+        List<QueuedLock> completed;
+        synchronized (this) {
+            Iterator<RangeLock> it = locks.iterator();
+            while (it.hasNext()) {
+                RangeLock lock = it.next();
+                if (lock.acquiredBy() == channel) {
+                    lock.valid = false;
+                    it.remove();
+                }
+            }
+            notifyAll();
+            completed = dequeue();
+        }
+        notifyWaiters(completed);
+    }
+
+    private void release(RangeLock lock) {
+        List<QueuedLock> completed;
+        synchronized (this) {
+            lock.valid = false;
+            locks.remove(lock);
+            notifyAll();
+            completed = dequeue();
+        }
+        notifyWaiters(completed);
+    }
+
+    /**
+     * Acquires queued locks that do not overlap other locks anymore, in request order. Must be called with lock on
+     * table.
+     *
+     * @return requests that are either acquired or failed
+     */
+    private List<QueuedLock> dequeue() {
+        if (queue.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<QueuedLock> completed = new ArrayList<>();
+        Iterator<QueuedLock> it = queue.iterator();
+        while (it.hasNext()) {
+            QueuedLock request = it.next();
+            if (!request.channel.isOpen()) {
+                request.failure = new AsynchronousCloseException();
+            } else {
+                try {
+                    request.lock = tryLock(request.channel, request.position, request.size, request.shared);
+                } catch (RuntimeException e) {
+                    request.failure = e;
+                }
+            }
+            if (null != request.lock || null != request.failure) {
+                it.remove();
+                completed.add(request);
+            }
+        }
+        return completed;
+    }
+
+    private static void notifyWaiters(List<QueuedLock> completed) {
+        for (QueuedLock request : completed) {
+            if (null == request.failure) {
+                request.waiter.acquired(request.lock);
+            } else {
+                request.waiter.failed(request.failure);
+            }
+        }
+    }
+
+    /**
+     * @return number of queued lock requests
+     */
+    synchronized int queued() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of locks held
+     */
+    synchronized int size() {
+        return locks.size();
+    }
+
+    private static void checkRange(long position, long size) {
+        if (position < 0 || size < 0 || Long.MAX_VALUE - size < position) {
+            throw new IllegalArgumentException("invalid lock range : position " + position + ", size " + size);
+        }
+    }
+
+    /**
+     * Lock request that waits for overlapping locks to be released
+     */
+    private static final class QueuedLock {
+
+        private final Channel channel;
+        private final long position;
+        private final long size;
+        private final boolean shared;
+        private final Waiter waiter;
+        private FileLock lock;
+        private Throwable failure;
+
+        private QueuedLock(Channel channel, long position, long size, boolean shared, Waiter waiter) {
+            this.channel = channel;
+            this.position = position;
+            this.size = size;
+            this.shared = shared;
+            this.waiter = waiter;
+        }
+    }
+
+    /**
+     * Lock of a range of bytes, which is valid until released or until its channel is closed
+     */
+    private static final class RangeLock extends FileLock {
+
+        private final FileLockTable table;
+        // thread safety : written with lock on table
+        private volatile boolean valid;
+
+        private RangeLock(FileLockTable table, FileChannel channel, long position, long size, boolean shared) {
+            super(channel, position, size, shared);
+            this.table = table;
+            this.valid = true;
+        }
+
+        private RangeLock(FileLockTable table, AsynchronousFileChannel channel, long position, long size, boolean shared) {
+            super(channel, position, size, shared);
+            this.table = table;
+            this.valid = true;
+        }
+
+        @Override
+        public boolean isValid() {
+            return valid && acquiredBy().isOpen();
+        }
+
+        @Override
+        public void release() throws IOException {
+            if (!acquiredBy().isOpen()) {
+                throw new ClosedChannelException();
+            }
+            table.release(this);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.sylvainjuge.memoryfs.ParamAssert.checkNotNull;
+
+/**
+ * Asynchronous file channel on file data, which delegates to a {@link MemoryFileChannel}.
+ * <p>
+ * Reading or writing file data never blocks, thus operations are completed by calling thread : returned futures are
+ * already done, and completion handlers are invoked directly. Executor is only used when too many handlers are
+ * invoked recursively by the same thread (for example when a handler starts the next read), which bounds stack depth.
+ * <p>
+ * Locks that overlap locks held by other channels are queued without blocking any thread : they are acquired when
+ * overlapping locks are released, their futures are then completed and their handlers are invoked by executor.
+ */
+public class MemoryAsynchronousFileChannel extends AsynchronousFileChannel {
+
+    /**
+     * maximum number of handlers invoked recursively by calling thread
+     */
+    private static final int MAX_INLINE_HANDLERS = 16;
+
+    private static final ThreadLocal<int[]> INLINE_HANDLERS = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private static final Runnable NO_TASK = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final MemoryFileChannel channel;
+    private final ExecutorService executor;
+
+    private MemoryAsynchronousFileChannel(MemoryFileChannel channel, ExecutorService executor) {
+        this.channel = checkNotNull(channel, "file channel");
+        this.executor = null == executor ? DefaultExecutor.INSTANCE : executor;
+    }
+
+    /**
+     * @param channel  file channel
+     * @param executor executor used to invoke completion handlers, default executor is used when null
+     * @return asynchronous file channel
+     */
+    static MemoryAsynchronousFileChannel newChannel(MemoryFileChannel channel, ExecutorService executor) {
+        return new MemoryAsynchronousFileChannel(channel, executor);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public AsynchronousFileChannel truncate(long size) throws IOException {
+        channel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        channel.force(metaData);
+    }
+
+    @Override
+    public <A> void lock(long position, long size, boolean shared, final A attachment,
+                         final CompletionHandler<FileLock, ? super A> handler) {
+        checkNotNull(handler, "completion handler");
+        FileLock lock = null;
+        Throwable failure = null;
+        try {
+            // lock that has to wait for overlapping locks is completed by executor once they are released
+            lock = channel.lock(this, position, size, shared, new FileLockTable.Waiter() {
+                @Override
+                public void acquired(FileLock acquired) {
+                    dispatch(acquired, null, attachment, handler);
+                }
+
+                @Override
+                public void failed(Throwable e) {
+                    dispatch(null, e, attachment, handler);
+                }
+            });
+            if (null == lock) {
+                return;
+            }
+        } catch (Throwable e) {
+            failure = e;
+        }
+        complete(lock, failure, attachment, handler);
+    }
+
+    @Override
+    public Future<FileLock> lock(long position, long size, boolean shared) {
+        LockFuture future = new LockFuture();
+        try {
+            FileLock lock = channel.lock(this, position, size, shared, future);
+            return null == lock ? future : new CompletedFuture<>(lock, null);
+        } catch (Throwable e) {
+            return new CompletedFuture<>(null, e);
+        }
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return channel.lock(this, position, size, shared, null);
+    }
+
+    @Override
+    public <A> void read(ByteBuffer dst, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        checkNotNull(handler, "completion handler");
+        Integer result = null;
+        Throwable failure = null;
+        try {
+            result = channel.read(dst, position);
+        } catch (Throwable e) {
+            failure = e;
+        }
+        complete(result, failure, attachment, handler);
+    }
+
+    @Override
+    public Future<Integer> read(ByteBuffer dst, long position) {
+        try {
+            return new CompletedFuture<>(channel.read(dst, position), null);
+        } catch (Throwable e) {
+            return new CompletedFuture<>(null, e);
+        }
+    }
+
+    @Override
+    public <A> void write(ByteBuffer src, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        checkNotNull(handler, "completion handler");
+        Integer result = null;
+        Throwable failure = null;
+        try {
+            result = channel.write(src, position);
+        } catch (Throwable e) {
+            failure = e;
+        }
+        complete(result, failure, attachment, handler);
+    }
+
+    @Override
+    public Future<Integer> write(ByteBuffer src, long position) {
+        try {
+            return new CompletedFuture<>(channel.write(src, position), null);
+        } catch (Throwable e) {
+            return new CompletedFuture<>(null, e);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        // waiting locks fail once channel is closed
+        channel.releaseLocks(this);
+    }
+
+    private <V, A> void complete(final V result, final Throwable failure, final A attachment,
+                                 final CompletionHandler<V, ? super A> handler) {
+        int[] depth = INLINE_HANDLERS.get();
+        if (MAX_INLINE_HANDLERS <= depth[0]) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    invoke(result, failure, attachment, handler);
+                }
+            });
+            return;
+        }
+        depth[0]++;
+        try {
+            invoke(result, failure, attachment, handler);
+        } finally {
+            depth[0]--;
+        }
+    }
+
+    // handlers of operations completed by another thread are invoked by executor
+    private <V, A> void dispatch(final V result, final Throwable failure, final A attachment,
+                                 final CompletionHandler<V, ? super A> handler) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    invoke(result, failure, attachment, handler);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // executor is shut down, handler is invoked by releasing thread instead
+            invoke(result, failure, attachment, handler);
+        }
+    }
+
+    private static <V, A> void invoke(V result, Throwable failure, A attachment, CompletionHandler<V, ? super A> handler) {
+        if (null == failure) {
+            handler.completed(result, attachment);
+        } else {
+            handler.failed(failure, attachment);
+        }
+    }
+
+    /**
+     * Future of a lock that waits for overlapping locks, completed by the thread that releases them
+     */
+    private final class LockFuture extends FutureTask<FileLock> implements FileLockTable.Waiter {
+
+        private LockFuture() {
+            // never run, completed by lock table
+            super(NO_TASK, null);
+        }
+
+        @Override
+        public void acquired(FileLock lock) {
+            set(lock);
+            if (isCancelled()) {
+                try {
+                    lock.release();
+                } catch (IOException e) {
+                    // lock is already released when channel is closed
+                }
+            }
+        }
+
+        @Override
+        public void failed(Throwable failure) {
+            setException(failure);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                channel.cancelLock(this);
+            }
+        }
+    }
+
+    /**
+     * Future of an operation that is already completed
+     */
+    private static final class CompletedFuture<V> implements Future<V> {
+
+        private final V result;
+        private final Throwable failure;
+
+        private CompletedFuture(V result, Throwable failure) {
+            this.result = result;
+            this.failure = failure;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public V get() throws ExecutionException {
+            if (null != failure) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws ExecutionException {
+            return get();
+        }
+    }
+
+    /**
+     * Executor used when none is provided, created on first use
+     */
+    private static final class DefaultExecutor {
+
+        private static final ExecutorService INSTANCE = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "memoryfs-async");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -7,83 +7,276 @@ import java.util.Objects;
 
 import static com.github.sylvainjuge.memoryfs.ParamAssert.checkNotNull;
 
-public class MemoryByteChannel implements SeekableByteChannel {
+/**
+ * Byte channel on file data, which also supports scattering reads and gathering writes : all buffers are read or
+ * written at once, while holding channel lock.
+ * <p>
+ * Read channels read a snapshot of file data taken when channel is opened : readers never block writers, and never
+ * see partial writes. Snapshot is released when channel is closed. Mappings always use file data itself.
+ */
+public class MemoryByteChannel implements SeekableByteChannel, GatheringByteChannel, ScatteringByteChannel, FileDataChannel {
 
+    private final FileData data;
+    private final FileData file; // file data itself, which differs from data when reading a snapshot
+    private final boolean snapshot;
+    private final boolean readable;
+    private final boolean writable;
+    private final boolean append;
+
+    // thread safety : synchronized on instance for r/w
     private boolean open;
     private long position;
 
-    private final WritableByteChannel writeChannel;
-    private final ReadableByteChannel readChannel;
-    private final FileData data;
-
-    private MemoryByteChannel(FileData data, boolean readOnly, boolean append) {
-        this.data = checkNotNull(data, "file data");
+    private MemoryByteChannel(FileData data, boolean readable, boolean writable, boolean append) {
+        checkNotNull(data, "file data");
+        // read-only channels only read a snapshot of data
+        this.data = writable ? data : data.snapshot();
+        this.file = data;
+        this.snapshot = this.data != data;
         this.open = true;
-        if (readOnly) {
-            writeChannel = null;
-            readChannel = Channels.newChannel(data.asInputStream());
-        } else {
-            readChannel = null;
-            if (append) {
-                position = data.size();
-            } else {
-                data.truncate(0);
-            }
-            writeChannel = Channels.newChannel(data.asOutputStream());
+        this.readable = readable;
+        this.writable = writable;
+        this.append = append;
+        if (append) {
+            position = data.size();
         }
     }
 
     public static MemoryByteChannel newReadChannel(FileData data) {
-        return new MemoryByteChannel(data, true, false);
+        return new MemoryByteChannel(data, true, false, false);
     }
 
+    /**
+     * @param data   file data
+     * @param append true to always write at end of file
+     * @return channel that writes over existing data, which is only truncated when file is opened with truncation
+     */
     public static MemoryByteChannel newWriteChannel(FileData data, boolean append) {
-        return new MemoryByteChannel(data, false, append);
+        return new MemoryByteChannel(data, false, true, append);
+    }
+
+    /**
+     * @param data file data
+     * @return channel that allows to read and overwrite existing data at any position, initially at start of file
+     */
+    public static MemoryByteChannel newReadWriteChannel(FileData data) {
+        return new MemoryByteChannel(data, true, true, false);
     }
 
     @Override
     public int read(ByteBuffer dst) throws IOException {
+        synchronized (this) {
+            checkOpen();
+            checkCanRead();
+            int read = data.read(position, dst);
+            if (0 < read) {
+                position += read;
+            }
+            return read;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        Objects.requireNonNull(src, "source buffer");
+        synchronized (this) {
+            checkOpen();
+            checkCanWrite();
+            if (!src.hasRemaining()) {
+                return 0;
+            }
+            if (append) {
+                // position is ignored, data is always appended at end of file
+                int written = data.append(src);
+                position = data.size();
+                return written;
+            }
+            // existing data is overwritten, writing after end of file leaves a hole
+            int written = data.write(position, src);
+            position += written;
+            return written;
+        }
+    }
+
+    /**
+     * Transfers file content to another channel without copying it, same as
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}. Target channel is given read-only views of
+     * file content, and storage is shared when target is a memory channel.
+     *
+     * @param position position in file where to start transfer, channel position is not modified
+     * @param count    maximum number of bytes to transfer
+     * @param target   target channel
+     * @return number of bytes transferred
+     * @throws IOException if transfer fails
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        Objects.requireNonNull(target, "target channel");
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("negative position or count not allowed");
+        }
+        checkOpen();
+        checkCanRead();
+        if (target instanceof FileDataChannel) {
+            return ((FileDataChannel) target).write(data, position, count);
+        }
+        return data.transferTo(position, count, target);
+    }
+
+    /**
+     * Transfers content of another channel in file, same as
+     * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}. Storage is shared when source is a memory
+     * channel.
+     *
+     * @param src      source channel
+     * @param position position in file where to start transfer, channel position is not modified
+     * @param count    maximum number of bytes to transfer
+     * @return number of bytes transferred
+     * @throws IOException if transfer fails
+     */
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        Objects.requireNonNull(src, "source channel");
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("negative position or count not allowed");
+        }
+        checkOpen();
+        checkCanWrite();
+        if (data.size() < position) {
+            return 0;
+        }
+        if (src instanceof FileDataChannel) {
+            return ((FileDataChannel) src).read(data, position, count);
+        }
+        return data.transferFrom(src, position, count);
+    }
+
+    /**
+     * Maps a region of file into a buffer, same as {@link FileChannel#map(FileChannel.MapMode, long, long)} except that
+     * buffer is not a {@link java.nio.MappedByteBuffer}.
+     * <p>
+     * Read-only and read-write buffers share storage with file, thus reads and writes through buffer (or through its
+     * typed views) do not copy data, and writes to file are visible through buffer even for read channels, which
+     * otherwise read a snapshot. Private mode provides a copy of current file content.
+     *
+     * @param mode     mapping mode, read-write mode requires a channel that allows both reading and writing
+     * @param position position in file where region starts
+     * @param size     region size, which can't exceed {@link Integer#MAX_VALUE}
+     * @return buffer of region content
+     * @throws IOException if region can't be mapped
+     */
+    public ByteBuffer map(FileChannel.MapMode mode, long position, long size) throws IOException {
+        Objects.requireNonNull(mode, "mapping mode");
+        if (position < 0 || size < 0 || Integer.MAX_VALUE < size) {
+            throw new IllegalArgumentException("invalid region position or size");
+        }
+        checkOpen();
+        checkCanRead();
+        if (FileChannel.MapMode.PRIVATE == mode) {
+            ByteBuffer copy = ByteBuffer.allocate((int) size);
+            file.read(position, copy);
+            copy.clear();
+            return copy;
+        }
+        boolean writable = FileChannel.MapMode.READ_WRITE == mode;
+        if (writable) {
+            checkCanWrite();
+        }
+        return file.map(position, (int) size, writable);
+    }
+
+    @Override
+    public synchronized long write(FileData src, long srcPosition, long count) throws IOException {
+        checkOpen();
+        checkCanWrite();
+        if (append) {
+            long written = FileData.transferToEnd(src, srcPosition, data, count);
+            position = data.size();
+            return written;
+        }
+        long written = FileData.transfer(src, srcPosition, data, position, count);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public synchronized long read(FileData dst, long dstPosition, long count) throws IOException {
         checkOpen();
         checkCanRead();
-        int read = readChannel.read(dst);
+        long read = FileData.transfer(data, position, dst, dstPosition, count);
         position += read;
         return read;
     }
 
     @Override
-    public int write(ByteBuffer src) throws IOException {
-        Objects.requireNonNull(src, "source buffer");
-        // all writes are sequential
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        checkBounds(dsts, offset, length);
+        synchronized (this) {
+            checkOpen();
+            checkCanRead();
+            long read = data.read(position, dsts, offset, length);
+            if (0 < read) {
+                position += read;
+            }
+            return read;
+        }
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        checkBounds(srcs, offset, length);
         synchronized (this) {
             checkOpen();
             checkCanWrite();
-            int written = writeChannel.write(src);
+            if (append) {
+                long written = data.append(srcs, offset, length);
+                position = data.size();
+                return written;
+            }
+            long written = data.write(position, srcs, offset, length);
             position += written;
             return written;
         }
     }
 
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    private static void checkBounds(ByteBuffer[] buffers, int offset, int length) {
+        Objects.requireNonNull(buffers, "buffers");
+        if (offset < 0 || length < 0 || buffers.length - length < offset) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
     private void checkCanRead() {
-        if (null == readChannel) {
+        if (!readable) {
             throw new NonReadableChannelException();
         }
     }
 
     private void checkCanWrite() {
-        if (null == writeChannel) {
+        if (!writable) {
             throw new NonWritableChannelException();
         }
     }
 
     @Override
-    public long position() throws IOException {
+    public synchronized long position() throws IOException {
+        checkOpen();
         return position;
     }
 
     @Override
-    public SeekableByteChannel position(long newPosition) throws IOException {
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
         checkOpen();
-        if (newPosition < 0 || data.size() <= newPosition) {
+        // write channels may be positioned after end of file
+        if (newPosition < 0 || (!writable && data.size() <= newPosition)) {
             throw new IllegalArgumentException("position out of bounds : " + newPosition);
         }
         this.position = newPosition;
@@ -92,17 +285,18 @@ public class MemoryByteChannel implements SeekableByteChannel {
 
     @Override
     public long size() throws IOException {
+        checkOpen();
         return data.size();
     }
 
     @Override
-    public SeekableByteChannel truncate(long newSize) throws IOException {
+    public synchronized SeekableByteChannel truncate(long newSize) throws IOException {
         checkOpen();
         checkCanWrite();
         if (newSize < 0) {
             throw new IllegalArgumentException("can't truncate to negative size");
         }
-        data.truncate((int) newSize);
+        data.truncate(newSize);
         if (data.size() < position) {
             position = data.size();
         }
@@ -110,17 +304,21 @@ public class MemoryByteChannel implements SeekableByteChannel {
     }
 
     @Override
-    public boolean isOpen() {
+    public synchronized boolean isOpen() {
         return open;
     }
 
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         checkOpen();
         this.open = false;
+        if (snapshot) {
+            data.release();
+        }
     }
 
-    private void checkOpen() throws ClosedChannelException {
+    // also used by transfers and size, which do not hold channel lock otherwise
+    private synchronized void checkOpen() throws ClosedChannelException {
         if (!open) {
             throw new ClosedChannelException();
         }
@@ -0,0 +1,351 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.util.Objects;
+
+import static com.github.sylvainjuge.memoryfs.ParamAssert.checkNotNull;
+
+/**
+ * File channel on file data, which uses the same storage as {@link MemoryByteChannel}.
+ * <p>
+ * Unlike {@link MemoryByteChannel}, a file channel may be both readable and writable, and writes overwrite existing
+ * data at channel position. Relative read and writes are serialized since they update channel position, positional
+ * reads and writes may be used concurrently.
+ * <p>
+ * Transfers to other channels do not copy data, and transfers between memory channels share storage.
+ */
+public class MemoryFileChannel extends FileChannel implements FileDataChannel {
+
+    private final FileData data;
+    private final boolean readable;
+    private final boolean writable;
+    private final boolean append;
+
+    // thread safety : synchronized on instance for r/w
+    private long position;
+
+    private MemoryFileChannel(FileData data, boolean readable, boolean writable, boolean append) {
+        this.data = checkNotNull(data, "file data");
+        this.readable = readable;
+        this.writable = writable;
+        this.append = append;
+        this.position = 0;
+    }
+
+    /**
+     * @param data     file data
+     * @param readable true if channel allows to read
+     * @param writable true if channel allows to write
+     * @param append   true if all writes are done at end of file
+     * @return file channel
+     */
+    static MemoryFileChannel newChannel(FileData data, boolean readable, boolean writable, boolean append) {
+        return new MemoryFileChannel(data, readable, writable, append);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        Objects.requireNonNull(dst, "destination buffer");
+        synchronized (this) {
+            checkOpen();
+            checkCanRead();
+            int read = data.read(position, dst);
+            if (0 < read) {
+                position += read;
+            }
+            return read;
+        }
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        checkBounds(dsts, offset, length);
+        synchronized (this) {
+            checkOpen();
+            checkCanRead();
+            long read = data.read(position, dsts, offset, length);
+            if (0 < read) {
+                position += read;
+            }
+            return read;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        Objects.requireNonNull(dst, "destination buffer");
+        checkPosition(position);
+        checkOpen();
+        checkCanRead();
+        return data.read(position, dst);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        Objects.requireNonNull(src, "source buffer");
+        synchronized (this) {
+            checkOpen();
+            checkCanWrite();
+            if (append) {
+                // end of file is found with lock on file data, thus appends from other channels are not overwritten
+                int written = data.append(src);
+                position = data.size();
+                return written;
+            }
+            int written = write(src, position, src.remaining());
+            position += written;
+            return written;
+        }
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        checkBounds(srcs, offset, length);
+        synchronized (this) {
+            checkOpen();
+            checkCanWrite();
+            if (append) {
+                long written = data.append(srcs, offset, length);
+                position = data.size();
+                return written;
+            }
+            long written = data.write(position, srcs, offset, length);
+            position += written;
+            return written;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        Objects.requireNonNull(src, "source buffer");
+        checkPosition(position);
+        checkOpen();
+        checkCanWrite();
+        return write(src, position, src.remaining());
+    }
+
+    private int write(ByteBuffer src, long position, int length) throws IOException {
+        // empty writes never extend file
+        if (0 == length) {
+            return 0;
+        }
+        return data.write(position, src);
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        checkOpen();
+        return append ? data.size() : position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) throws IOException {
+        checkPosition(newPosition);
+        checkOpen();
+        // position may be after end of file, reads return end of file and writes leave a hole
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+        return data.size();
+    }
+
+    @Override
+    public synchronized FileChannel truncate(long size) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("can't truncate to negative size");
+        }
+        checkOpen();
+        checkCanWrite();
+        data.truncate(size);
+        if (size < position) {
+            position = size;
+        }
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        checkOpen();
+        // nothing to do, file data is never stored elsewhere
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        Objects.requireNonNull(target, "target channel");
+        checkPosition(position);
+        checkCount(count);
+        checkOpen();
+        checkCanRead();
+        if (target instanceof FileDataChannel) {
+            return ((FileDataChannel) target).write(data, position, count);
+        }
+        return data.transferTo(position, count, target);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        Objects.requireNonNull(src, "source channel");
+        checkPosition(position);
+        checkCount(count);
+        checkOpen();
+        checkCanWrite();
+        if (data.size() < position) {
+            return 0;
+        }
+        if (src instanceof FileDataChannel) {
+            return ((FileDataChannel) src).read(data, position, count);
+        }
+        return data.transferFrom(src, position, count);
+    }
+
+    @Override
+    public synchronized long write(FileData src, long srcPosition, long count) throws IOException {
+        checkOpen();
+        checkCanWrite();
+        if (append) {
+            long written = FileData.transferToEnd(src, srcPosition, data, count);
+            position = data.size();
+            return written;
+        }
+        long written = FileData.transfer(src, srcPosition, data, position, count);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public synchronized long read(FileData dst, long dstPosition, long count) throws IOException {
+        checkOpen();
+        checkCanRead();
+        long read = FileData.transfer(data, position, dst, dstPosition, count);
+        position += read;
+        return read;
+    }
+
+    /**
+     * Not supported : {@link MappedByteBuffer} can only be created by JDK for files stored on disk.
+     * <p>
+     * File content is mapped through {@link MemoryByteChannel#map(FileChannel.MapMode, long, long)} instead, on a
+     * channel opened with {@link java.nio.file.Files#newByteChannel(java.nio.file.Path, java.nio.file.OpenOption...)},
+     * which provides a {@link ByteBuffer} that shares storage with file.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        throw new UnsupportedOperationException("FileChannel.map is not supported for memory files, use "
+                + "MemoryByteChannel.map on a channel opened with Files.newByteChannel instead");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        checkOpen();
+        checkCanLock(shared);
+        return data.locks().lock(this, position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        checkOpen();
+        checkCanLock(shared);
+        return data.locks().tryLock(this, position, size, shared);
+    }
+
+    /**
+     * Acquires a lock on file data on behalf of another channel
+     *
+     * @param owner  channel that acquires lock
+     * @param shared true for a shared lock
+     * @param waiter notified once lock is acquired when it has to wait for overlapping locks, null to return null
+     *               instead of waiting
+     * @return acquired lock, null if not acquired without waiting
+     * @throws IOException if channel is closed
+     * @see FileLockTable
+     */
+    FileLock lock(Channel owner, long position, long size, boolean shared, FileLockTable.Waiter waiter)
+            throws IOException {
+        checkOpen();
+        checkCanLock(shared);
+        FileLockTable locks = data.locks();
+        return null == waiter
+                ? locks.tryLock(owner, position, size, shared)
+                : locks.lock(owner, position, size, shared, waiter);
+    }
+
+    /**
+     * Cancels a lock request that waits for overlapping locks
+     *
+     * @param waiter waiter of request
+     * @return true if request is cancelled, false if it's already completed
+     */
+    boolean cancelLock(FileLockTable.Waiter waiter) {
+        return data.locks().cancel(waiter);
+    }
+
+    /**
+     * Releases locks acquired on file data on behalf of another channel
+     *
+     * @param owner channel that acquired locks
+     */
+    void releaseLocks(Channel owner) {
+        data.releaseLocks(owner);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        // file data is owned by its entry, only locks have to be released
+        data.releaseLocks(this);
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void checkCanRead() {
+        if (!readable) {
+            throw new NonReadableChannelException();
+        }
+    }
+
+    private void checkCanWrite() {
+        if (!writable) {
+            throw new NonWritableChannelException();
+        }
+    }
+
+    private void checkCanLock(boolean shared) {
+        // like file channels, shared locks require to read and exclusive locks require to write
+        if (shared) {
+            checkCanRead();
+        } else {
+            checkCanWrite();
+        }
+    }
+
+    private static void checkPosition(long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("negative position not allowed : " + position);
+        }
+    }
+
+    private static void checkCount(long count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("negative count not allowed : " + count);
+        }
+    }
+
+    private static void checkBounds(ByteBuffer[] buffers, int offset, int length) {
+        Objects.requireNonNull(buffers, "buffers");
+        if (offset < 0 || length < 0 || buffers.length - length < offset) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+}
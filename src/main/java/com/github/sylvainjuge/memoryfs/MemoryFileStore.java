@@ -7,25 +7,90 @@ import java.nio.file.attribute.FileStoreAttributeView;
 
 public class MemoryFileStore extends FileStore {
 
+    /**
+     * Attribute for logical size in bytes, which is the sum of all file sizes
+     */
+    public static final String LOGICAL_BYTES = "logicalBytes";
+
+    /**
+     * Attribute for physical size in bytes, which is the size of storage used for file content
+     */
+    public static final String PHYSICAL_BYTES = "physicalBytes";
+
+    /**
+     * Attribute for number of compressed blocks
+     */
+    public static final String COMPRESSED_BLOCKS = "compressedBlocks";
+
+    /**
+     * Attribute for compression ratio, which is compressed size divided by uncompressed size of compressed blocks
+     */
+    public static final String COMPRESSION_RATIO = "compressionRatio";
+
+    /**
+     * Attribute for CPU time in nanoseconds used to compress file content
+     */
+    public static final String COMPRESSION_TIME = "compressionTime";
+
+    /**
+     * Attribute for CPU time in nanoseconds used to decompress file content
+     */
+    public static final String DECOMPRESSION_TIME = "decompressionTime";
+
+    /**
+     * Attribute for size in bytes of released storage kept for reuse
+     */
+    public static final String POOLED_BYTES = "pooledBytes";
+
+    /**
+     * Attribute for number of allocations served by reusing released storage
+     */
+    public static final String POOL_HITS = "poolHits";
+
+    /**
+     * Attribute for number of allocations that could not reuse released storage
+     */
+    public static final String POOL_MISSES = "poolMisses";
+
+    /**
+     * Attribute for size in bytes of file content stored in heap
+     */
+    public static final String HOT_TIER_BYTES = "hotTierBytes";
+
+    /**
+     * Attribute for size in bytes of file content stored off-heap
+     */
+    public static final String WARM_TIER_BYTES = "warmTierBytes";
+
+    /**
+     * Attribute for size in bytes of file content stored in a temporary file
+     */
+    public static final String COLD_TIER_BYTES = "coldTierBytes";
+
+    private static final String ATTRIBUTE_VIEW = "memory";
+
     private final String name;
     private final boolean readOnly;
-    private long totalSpace = 0;
-    private long freeSpace = 0;
+    private final BlockStorage storage;
 
-    private MemoryFileStore(String name, boolean readOnly, long capacity) {
+    private MemoryFileStore(String name, boolean readOnly, BlockStorage storage) {
         this.name = name;
         this.readOnly = readOnly;
-        this.totalSpace = capacity;
-        this.freeSpace = capacity;
+        this.storage = storage;
     }
 
     static class Builder {
         private long capacity = 0;
         private boolean readOnly = false;
         private String name = "";
+        private BlockStorage storage = null;
 
         MemoryFileStore build() {
-            return new MemoryFileStore(name, readOnly, capacity);
+            if (null != storage && capacity != storage.capacity()) {
+                throw new IllegalArgumentException("store capacity must be the same as storage capacity");
+            }
+            return new MemoryFileStore(name, readOnly,
+                    null == storage ? BlockStorage.builder().capacity(capacity).build() : storage);
         }
 
         public Builder readOnly(boolean readOnly) {
@@ -37,6 +102,15 @@ public class MemoryFileStore extends FileStore {
             this.capacity = capacity;
             return this;
         }
+
+        /**
+         * @param storage storage used for file content, which capacity must be the same as store capacity
+         * @return this builder
+         */
+        public Builder storage(BlockStorage storage) {
+            this.storage = storage;
+            return this;
+        }
     }
 
     static Builder builder() {
@@ -61,17 +135,19 @@ public class MemoryFileStore extends FileStore {
 
     @Override
     public long getTotalSpace() throws IOException {
-        return totalSpace;
+        // space of unlimited storage is only limited by memory
+        return BlockStorage.UNLIMITED == storage.capacity() ? Long.MAX_VALUE : storage.capacity();
     }
 
     @Override
     public long getUsableSpace() throws IOException {
-        return readOnly ? 0 : freeSpace;
+        return readOnly ? 0 : getUnallocatedSpace();
     }
 
     @Override
     public long getUnallocatedSpace() throws IOException {
-        return freeSpace;
+        // used space is the sum of all file sizes, thus it is not reduced by sparse files, copies or deduplication
+        return Math.max(0, getTotalSpace() - storage.logicalSize());
     }
 
     @Override
@@ -89,8 +165,44 @@ public class MemoryFileStore extends FileStore {
         return null;
     }
 
+    /**
+     * @param attribute attribute name, with optional {@code memory:} view prefix
+     * @return attribute value
+     * @throws UnsupportedOperationException if attribute is not supported
+     */
     @Override
     public Object getAttribute(String attribute) throws IOException {
-        return null;
+        String attributeName = attribute;
+        if (attribute.startsWith(ATTRIBUTE_VIEW + ":")) {
+            attributeName = attribute.substring(ATTRIBUTE_VIEW.length() + 1);
+        }
+        switch (attributeName) {
+            case LOGICAL_BYTES:
+                return storage.logicalSize();
+            case PHYSICAL_BYTES:
+                return storage.physicalSize();
+            case COMPRESSED_BLOCKS:
+                return storage.compressedBlocks();
+            case COMPRESSION_RATIO:
+                return storage.compressionRatio();
+            case COMPRESSION_TIME:
+                return storage.compressionTime();
+            case DECOMPRESSION_TIME:
+                return storage.decompressionTime();
+            case POOLED_BYTES:
+                return null == storage.pool() ? 0L : (long) storage.pool().size() * FileData.BLOCK_SIZE;
+            case POOL_HITS:
+                return null == storage.pool() ? 0L : storage.pool().hits();
+            case POOL_MISSES:
+                return null == storage.pool() ? 0L : storage.pool().misses();
+            case HOT_TIER_BYTES:
+                return storage.tierSize(BlockStorage.Tier.HOT);
+            case WARM_TIER_BYTES:
+                return storage.tierSize(BlockStorage.Tier.WARM);
+            case COLD_TIER_BYTES:
+                return storage.tierSize(BlockStorage.Tier.COLD);
+            default:
+                throw new UnsupportedOperationException("unsupported attribute : " + attribute);
+        }
     }
 }
@@ -1,10 +1,13 @@
 package com.github.sylvainjuge.memoryfs;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.*;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
@@ -15,9 +18,57 @@ public class MemoryFileSystem extends FileSystem {
     static final String SEPARATOR = "/";
     static final String SCHEME = "memory";
 
+    /**
+     * Environment key for maximum size in bytes of all files, value is either a {@link Number} or a {@link String}.
+     * Zero (default) for no limit. Capacity is a quota on file sizes, not on allocated memory.
+     */
+    public static final String ENV_CAPACITY = "capacity";
+
+    /**
+     * Environment key for file content storage mode, value is either a {@link StorageMode} or its name.
+     */
+    public static final String ENV_STORAGE = "storage";
+
+    /**
+     * Environment key for size in bytes above which file content is stored in a temporary memory-mapped file, value
+     * is either a {@link Number} or a {@link String}. Zero (default) disables spill to file.
+     */
+    public static final String ENV_SPILL_THRESHOLD = "spillThreshold";
+
+    /**
+     * Environment key to enable deduplication of identical file content blocks, value is either a {@link Boolean} or
+     * a {@link String}. Disabled by default.
+     */
+    public static final String ENV_DEDUPLICATION = "deduplication";
+
+    /**
+     * Environment key for delay in milliseconds after which unused file content is compressed, value is either a
+     * {@link Number} or a {@link String}. Zero (default) disables compression.
+     */
+    public static final String ENV_COMPRESS_AFTER = "compressAfter";
+
+    /**
+     * Environment key for maximum size in bytes of released storage kept for reuse by new file content, value is
+     * either a {@link Number} or a {@link String}. Zero (default) disables reuse.
+     */
+    public static final String ENV_POOL_SIZE = "poolSize";
+
+    /**
+     * Environment key for maximum size in bytes of file content stored in heap with {@link StorageMode#TIERED}
+     * storage, value is either a {@link Number} or a {@link String}.
+     */
+    public static final String ENV_HOT_TIER_SIZE = "hotTierSize";
+
+    /**
+     * Environment key for maximum size in bytes of file content stored off-heap with {@link StorageMode#TIERED}
+     * storage, value is either a {@link Number} or a {@link String}.
+     */
+    public static final String ENV_WARM_TIER_SIZE = "warmTierSize";
+
     private final MemoryFileSystemProvider provider;
     private final String id;
-    private final FileStore store;
+    private final MemoryFileStore store;
+    private final BlockStorage storage;
 
     private final Entry rootEntry = Entry.newRoot();
     private final List<Path> rootDirectories;
@@ -31,19 +82,20 @@ public class MemoryFileSystem extends FileSystem {
         throw new ProviderMismatchException();
     }
 
-    private MemoryFileSystem(MemoryFileSystemProvider provider, String id, long capacity) {
+    private MemoryFileSystem(MemoryFileSystemProvider provider, String id, BlockStorage storage) {
         this.provider = provider;
         this.id = id;
         this.isOpen = new AtomicBoolean(true);
-        this.store = MemoryFileStore.builder().capacity(capacity).build();
+        this.store = MemoryFileStore.builder().capacity(storage.capacity()).storage(storage).build();
+        this.storage = storage;
         this.rootDirectories = new ArrayList<>();
         this.rootDirectories.add(MemoryPath.createRoot(this));
     }
 
     static class Builder {
         private final MemoryFileSystemProvider provider;
-        private long capacity = 0;
         private String id = "";
+        private final BlockStorage.Builder storage = BlockStorage.builder();
 
         private Builder(MemoryFileSystemProvider provider) {
             this.provider = provider;
@@ -57,16 +109,149 @@ public class MemoryFileSystem extends FileSystem {
             return this;
         }
 
+        /**
+         * @param capacity maximum sum in bytes of all file sizes, writes that would exceed it fail, zero for no limit.
+         *                 Sparse files and copies are charged by their size, whatever memory they actually use.
+         * @return this builder
+         */
         public Builder capacity(long capacity) {
-            if (capacity < 0) {
-                throw new IllegalArgumentException("capacity can't be negative");
+            storage.capacity(capacity);
+            return this;
+        }
+
+        public Builder storage(StorageMode storageMode) {
+            storage.mode(storageMode);
+            return this;
+        }
+
+        /**
+         * @param spillThreshold size in bytes above which file content is stored in a temporary memory-mapped file,
+         *                       zero to disable
+         * @return this builder
+         */
+        public Builder spillThreshold(long spillThreshold) {
+            storage.spillThreshold(spillThreshold);
+            return this;
+        }
+
+        /**
+         * @param deduplication true to store full blocks with identical content only once
+         * @return this builder
+         */
+        public Builder deduplication(boolean deduplication) {
+            storage.deduplication(deduplication);
+            return this;
+        }
+
+        /**
+         * @param compressAfter delay in milliseconds after which unused file content is compressed in background,
+         *                      zero to disable
+         * @return this builder
+         */
+        public Builder compressAfter(long compressAfter) {
+            storage.compressAfter(compressAfter);
+            return this;
+        }
+
+        /**
+         * @param poolSize maximum size in bytes of storage released by deleted or truncated files that is kept for
+         *                 reuse, zero to disable
+         * @return this builder
+         */
+        public Builder poolSize(long poolSize) {
+            storage.poolSize(poolSize);
+            return this;
+        }
+
+        /**
+         * @param hotTierSize maximum size in bytes of file content stored in heap, only used by
+         *                    {@link StorageMode#TIERED} storage
+         * @return this builder
+         */
+        public Builder hotTierSize(long hotTierSize) {
+            storage.hotTierSize(hotTierSize);
+            return this;
+        }
+
+        /**
+         * @param warmTierSize maximum size in bytes of file content stored off-heap, only used by
+         *                     {@link StorageMode#TIERED} storage
+         * @return this builder
+         */
+        public Builder warmTierSize(long warmTierSize) {
+            storage.warmTierSize(warmTierSize);
+            return this;
+        }
+
+        /**
+         * Configures file system from environment, as provided to {@link java.nio.file.FileSystems#newFileSystem}
+         *
+         * @param env environment, may be null
+         * @return this builder
+         */
+        public Builder environment(Map<String, ?> env) {
+            if (null == env) {
+                return this;
+            }
+            Object capacity = env.get(ENV_CAPACITY);
+            if (null != capacity) {
+                capacity(parseLong(ENV_CAPACITY, capacity));
+            }
+            Object storage = env.get(ENV_STORAGE);
+            if (null != storage) {
+                storage(StorageMode.parse(storage));
+            }
+            Object spillThreshold = env.get(ENV_SPILL_THRESHOLD);
+            if (null != spillThreshold) {
+                spillThreshold(parseLong(ENV_SPILL_THRESHOLD, spillThreshold));
+            }
+            Object deduplication = env.get(ENV_DEDUPLICATION);
+            if (null != deduplication) {
+                deduplication(parseBoolean(ENV_DEDUPLICATION, deduplication));
+            }
+            Object compressAfter = env.get(ENV_COMPRESS_AFTER);
+            if (null != compressAfter) {
+                compressAfter(parseLong(ENV_COMPRESS_AFTER, compressAfter));
+            }
+            Object poolSize = env.get(ENV_POOL_SIZE);
+            if (null != poolSize) {
+                poolSize(parseLong(ENV_POOL_SIZE, poolSize));
+            }
+            Object hotTierSize = env.get(ENV_HOT_TIER_SIZE);
+            if (null != hotTierSize) {
+                hotTierSize(parseLong(ENV_HOT_TIER_SIZE, hotTierSize));
+            }
+            Object warmTierSize = env.get(ENV_WARM_TIER_SIZE);
+            if (null != warmTierSize) {
+                warmTierSize(parseLong(ENV_WARM_TIER_SIZE, warmTierSize));
             }
-            this.capacity = capacity;
             return this;
         }
 
+        private static boolean parseBoolean(String key, Object value) {
+            if (value instanceof Boolean) {
+                return (Boolean) value;
+            }
+            String s = String.valueOf(value);
+            if ("true".equalsIgnoreCase(s) || "false".equalsIgnoreCase(s)) {
+                return Boolean.parseBoolean(s);
+            }
+            throw new IllegalArgumentException("invalid value for " + key + " : " + value);
+        }
+
+        private static long parseLong(String key, Object value) {
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            try {
+                return Long.parseLong(String.valueOf(value));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid value for " + key + " : " + value, e);
+            }
+        }
+
         public MemoryFileSystem build() {
-            return provider.registerFileSystem(new MemoryFileSystem(provider, id, capacity));
+            return provider.registerFileSystem(new MemoryFileSystem(provider, id, storage.build()));
         }
     }
 
@@ -81,6 +266,10 @@ public class MemoryFileSystem extends FileSystem {
         return id;
     }
 
+    BlockStorage getStorage() {
+        return storage;
+    }
+
     FileStore getFileStore(Path path) throws IOException {
         Entry entry = findEntry(path);
         if (null == entry) {
@@ -235,7 +424,7 @@ public class MemoryFileSystem extends FileSystem {
         String name = MemoryPath.asMemoryPath(absolutePath.getFileName()).getPath();
         return directory ?
                 Entry.newDirectory(parentEntry, name) :
-                Entry.newFile(parentEntry, name);
+                Entry.newFile(parentEntry, name, FileData.newEmpty(storage));
 
     }
 
@@ -270,6 +459,9 @@ public class MemoryFileSystem extends FileSystem {
     public void close() throws IOException {
         if (isOpen.getAndSet(false)) {
             provider.removeFileSystem(id);
+            // file content is released explicitly, which is required for off-heap storage
+            rootEntry.release();
+            storage.close();
         }
     }
 
@@ -295,7 +487,7 @@ public class MemoryFileSystem extends FileSystem {
 
     @Override
     public Iterable<FileStore> getFileStores() {
-        return Collections.singletonList(store);
+        return Collections.<FileStore>singletonList(store);
     }
 
     @Override
@@ -335,38 +527,79 @@ public class MemoryFileSystem extends FileSystem {
     }
 
     public MemoryByteChannel newByteChannel(Path path, Set<? extends OpenOption> options) throws IOException {
-        if (hasAnyOption(options, SPARSE, DELETE_ON_CLOSE, SYNC, DSYNC)) {
-            throw new UnsupportedOperationException();
+        ChannelOptions o = new ChannelOptions(options);
+        FileData data = channelEntry(path, o).getData();
+        if (!o.write) {
+            return MemoryByteChannel.newReadChannel(data);
         }
-        boolean isRead = hasAnyOption(options, READ);
-        boolean isWrite = hasAnyOption(options, WRITE);
-        if (!isRead && !isWrite) {
-            isRead = true;
-        } else if (isRead && isWrite) {
-            throw new IllegalArgumentException("exactly one of read or write expected, mutualy exclusive");
+        return o.read
+                ? MemoryByteChannel.newReadWriteChannel(data)
+                : MemoryByteChannel.newWriteChannel(data, o.append);
+    }
+
+    public MemoryFileChannel newFileChannel(Path path, Set<? extends OpenOption> options) throws IOException {
+        ChannelOptions o = new ChannelOptions(options);
+        return MemoryFileChannel.newChannel(channelEntry(path, o).getData(), o.read, o.write, o.append);
+    }
+
+    private Entry channelEntry(Path path, ChannelOptions o) throws IOException {
+        return o.write ? writableEntry(path, o.create, o.createNew, o.truncate) : readableEntry(path);
+    }
+
+    public MemoryAsynchronousFileChannel newAsynchronousFileChannel(Path path, Set<? extends OpenOption> options, ExecutorService executor) throws IOException {
+        if (hasAnyOption(options, APPEND)) {
+            throw new UnsupportedOperationException("append not supported for asynchronous channels");
         }
+        return MemoryAsynchronousFileChannel.newChannel(newFileChannel(path, options), executor);
+    }
 
-        boolean create = isWrite && hasAnyOption(options, CREATE, CREATE_NEW);
-        boolean createNew = isWrite && hasAnyOption(options, CREATE_NEW);
-        boolean truncate = create && hasAnyOption(options, TRUNCATE_EXISTING);
+    public InputStream newInputStream(Path path, Set<? extends OpenOption> options) throws IOException {
+        if (hasAnyOption(options, APPEND, WRITE)) {
+            throw new UnsupportedOperationException("'" + options + "' not allowed");
+        }
+        if (hasAnyOption(options, DELETE_ON_CLOSE)) {
+            throw new UnsupportedOperationException();
+        }
+        return readableEntry(path).getData().newSnapshotInputStream();
+    }
+
+    public OutputStream newOutputStream(Path path, Set<? extends OpenOption> options) throws IOException {
+        if (hasAnyOption(options, READ)) {
+            throw new IllegalArgumentException("READ not allowed");
+        }
+        if (hasAnyOption(options, DELETE_ON_CLOSE, SYNC, DSYNC)) {
+            throw new UnsupportedOperationException();
+        }
+        // same defaults as FileSystemProvider.newOutputStream
+        boolean create = options.isEmpty() || hasAnyOption(options, CREATE, CREATE_NEW);
+        boolean truncate = options.isEmpty() || hasAnyOption(options, TRUNCATE_EXISTING);
+        boolean append = hasAnyOption(options, APPEND);
+        if (append && truncate) {
+            throw new IllegalArgumentException("append not allowed with truncate");
+        }
+        FileData data = writableEntry(path, create, hasAnyOption(options, CREATE_NEW), truncate).getData();
+        return data.newOutputStream(append);
+    }
 
+    private Entry readableEntry(Path path) throws IOException {
         Path absolutePath = path.toAbsolutePath();
         Entry entry = findEntry(absolutePath);
+        if (null == entry) throw new DoesNotExistsException(absolutePath);
+        if (entry.isDirectory()) throw new InvalidRequestException("target path is a directory : " + absolutePath);
+        return entry;
+    }
 
-        if (isRead) {
-            if (null == entry) throw new DoesNotExistsException(absolutePath);
-            if (entry.isDirectory()) throw new InvalidRequestException("target path is a directory : " + absolutePath);
-            return MemoryByteChannel.newReadChannel(entry.getData());
-        } else {
-            if (null == entry) {
-                if (!create) throw new DoesNotExistsException(path);
-                entry = createEntry(absolutePath, false, false);
-            } else {
-                if (createNew) throw new ConflictException("impossible to create new file, it already exists");
-                if (truncate) entry.getData().truncate(0);
-            }
-            return MemoryByteChannel.newWriteChannel(entry.getData(), options.contains(APPEND));
+    private Entry writableEntry(Path path, boolean create, boolean createNew, boolean truncate) throws IOException {
+        Path absolutePath = path.toAbsolutePath();
+        Entry entry = findEntry(absolutePath);
+        if (null == entry) {
+            if (!create) throw new DoesNotExistsException(path);
+            return createEntry(absolutePath, false, false);
         }
+        if (createNew) throw new ConflictException("impossible to create new file, it already exists");
+        if (entry.isDirectory()) throw new InvalidRequestException("target path is a directory : " + absolutePath);
+        if (truncate) entry.getData().truncate(0);
+        return entry;
     }
 
     private static boolean hasAnyOption(Set<? extends OpenOption> set, OpenOption... option) {
@@ -376,6 +609,35 @@ public class MemoryFileSystem extends FileSystem {
         return false;
     }
 
+    /**
+     * Open options of byte and file channels
+     */
+    private static class ChannelOptions {
+
+        private final boolean read;
+        private final boolean write;
+        private final boolean append;
+        private final boolean create;
+        private final boolean createNew;
+        private final boolean truncate;
+
+        private ChannelOptions(Set<? extends OpenOption> options) {
+            // SPARSE is always honored since holes are never allocated
+            if (hasAnyOption(options, DELETE_ON_CLOSE, SYNC, DSYNC)) {
+                throw new UnsupportedOperationException();
+            }
+            this.append = hasAnyOption(options, APPEND);
+            this.write = append || hasAnyOption(options, WRITE);
+            this.read = !write || hasAnyOption(options, READ);
+            if (append && (read || hasAnyOption(options, TRUNCATE_EXISTING))) {
+                throw new IllegalArgumentException("append not allowed with read or truncate");
+            }
+            this.create = write && hasAnyOption(options, CREATE, CREATE_NEW);
+            this.createNew = write && hasAnyOption(options, CREATE_NEW);
+            this.truncate = write && hasAnyOption(options, TRUNCATE_EXISTING);
+        }
+    }
+
     private static class DirectoryStreamPathIterator implements Iterator<Path> {
 
         private final MemoryFileSystem fs;
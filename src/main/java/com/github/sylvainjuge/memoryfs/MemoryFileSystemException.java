@@ -1,5 +1,6 @@
 package com.github.sylvainjuge.memoryfs;
 
+import java.nio.file.FileSystemException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 
@@ -44,4 +45,31 @@ class InvalidRequestException extends MemoryFileSystemException{
     InvalidRequestException(String msg){
         super(msg);
     }
-}
\ No newline at end of file
+}
+
+/** exception thrown when file system capacity does not allow to store more data */
+class NoSpaceLeftException extends FileSystemException {
+    NoSpaceLeftException() {
+        super(null, null, "no space left");
+    }
+}
+
+/** exception thrown when writing to a file that has been deleted, through a channel that is still open */
+class DeletedFileException extends FileSystemException {
+    DeletedFileException() {
+        super(null, null, "file has been deleted");
+    }
+}
+
+/**
+ * exception thrown when content read without lock on its file is not available anymore, or must be decompressed. Read
+ * is then done again with lock, thus a single instance without stack trace is used.
+ */
+class StaleReadException extends RuntimeException {
+
+    static final StaleReadException INSTANCE = new StaleReadException();
+
+    private StaleReadException() {
+        super("content modified while being read", null, false, false);
+    }
+}
@@ -1,7 +1,11 @@
 package com.github.sylvainjuge.memoryfs;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -10,8 +14,10 @@ import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import static com.github.sylvainjuge.memoryfs.MemoryFileSystem.SCHEME;
 import static com.github.sylvainjuge.memoryfs.MemoryFileSystem.SEPARATOR;
@@ -55,14 +61,14 @@ public class MemoryFileSystemProvider extends FileSystemProvider {
         return "";
     }
 
-    // TODO : retrieve fs store structure & capacity from options or through uri parameters
+    // TODO : retrieve fs store structure & capacity through uri parameters
     // TODO : allow to create FS with a random ID (distinct from other instances handled by this provider)
 
     @Override
     public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
         checkMemoryScheme(uri);
         String id = checkAndGetFileSystemId(uri);
-        return MemoryFileSystem.builder(this).id(id).capacity(0).build();
+        return MemoryFileSystem.builder(this).id(id).capacity(0).environment(env).build();
     }
 
     public MemoryFileSystem registerFileSystem(MemoryFileSystem fs) {
@@ -127,6 +133,38 @@ public class MemoryFileSystemProvider extends FileSystemProvider {
         return asMemoryFileSystem(path.getFileSystem()).newByteChannel(path, options);
     }
 
+    /**
+     * Opens a {@link MemoryFileChannel}, which supports all file channel operations except
+     * {@link FileChannel#map(FileChannel.MapMode, long, long)} : file content is mapped through
+     * {@link MemoryByteChannel#map(FileChannel.MapMode, long, long)} on a channel opened with
+     * {@link #newByteChannel(Path, Set, FileAttribute[])}.
+     */
+    @Override
+    public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        return asMemoryFileSystem(path.getFileSystem()).newFileChannel(path, options);
+    }
+
+    @Override
+    public AsynchronousFileChannel newAsynchronousFileChannel(Path path, Set<? extends OpenOption> options, ExecutorService executor, FileAttribute<?>... attrs) throws IOException {
+        return asMemoryFileSystem(path.getFileSystem()).newAsynchronousFileChannel(path, options, executor);
+    }
+
+    @Override
+    public InputStream newInputStream(Path path, OpenOption... options) throws IOException {
+        return asMemoryFileSystem(path.getFileSystem()).newInputStream(path, asSet(options));
+    }
+
+    @Override
+    public OutputStream newOutputStream(Path path, OpenOption... options) throws IOException {
+        return asMemoryFileSystem(path.getFileSystem()).newOutputStream(path, asSet(options));
+    }
+
+    private static Set<OpenOption> asSet(OpenOption... options) {
+        Set<OpenOption> result = new HashSet<>();
+        Collections.addAll(result, options);
+        return result;
+    }
+
     @Override
     public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
          return asMemoryFileSystem(dir.getFileSystem()).newDirectoryStream(dir);
@@ -0,0 +1,137 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Blocks stored outside of heap in a memory-mapped temporary file.
+ * <p>
+ * Temporary file is created on first allocation, and is mapped by regions of several blocks to limit the number of
+ * mappings. Released blocks are reused by later allocations, file is deleted when closed.
+ */
+final class SpillFile {
+
+    private static final int BLOCKS_PER_REGION = 256;
+    private static final long REGION_SIZE = (long) BLOCKS_PER_REGION * FileData.BLOCK_SIZE;
+
+    // thread safety : synchronized on instance for r/w
+    private FileChannel channel;
+    private final List<MappedByteBuffer> regions;
+    private final Deque<Integer> freeSlots;
+    private final Map<ByteBuffer, Integer> usedSlots;
+    private int slotCount;
+    private boolean closed;
+
+    SpillFile() {
+        this.regions = new ArrayList<>();
+        this.freeSlots = new ArrayDeque<>();
+        this.usedSlots = new IdentityHashMap<>();
+        this.slotCount = 0;
+    }
+
+    synchronized ByteBuffer allocate() throws IOException {
+        Integer slot = freeSlots.poll();
+        if (null == slot) {
+            if (slotCount == regions.size() * BLOCKS_PER_REGION) {
+                mapRegion();
+            }
+            slot = slotCount++;
+        }
+        ByteBuffer region = regions.get(slot / BLOCKS_PER_REGION).duplicate();
+        int offset = (slot % BLOCKS_PER_REGION) * FileData.BLOCK_SIZE;
+        region.position(offset);
+        region.limit(offset + FileData.BLOCK_SIZE);
+        ByteBuffer block = region.slice();
+        usedSlots.put(block, slot);
+        return block;
+    }
+
+    private void mapRegion() throws IOException {
+        if (null == channel) {
+            Path file = Files.createTempFile("memoryfs", ".spill");
+            channel = FileChannel.open(file, READ, WRITE, DELETE_ON_CLOSE);
+        }
+        // file grows when mapped region is not within its current size
+        regions.add(channel.map(FileChannel.MapMode.READ_WRITE, regions.size() * REGION_SIZE, REGION_SIZE));
+    }
+
+    /**
+     * @param block block to release
+     * @return true if block has been allocated by this spill file (and is released), false otherwise
+     */
+    synchronized boolean release(ByteBuffer block) {
+        Integer slot = usedSlots.remove(block);
+        if (null == slot) {
+            return false;
+        }
+        if (closed) {
+            if (usedSlots.isEmpty()) {
+                releaseRegions();
+            }
+        } else {
+            freeSlots.push(slot);
+        }
+        return true;
+    }
+
+    /**
+     * @param block block
+     * @return true if block has been allocated by this spill file and is not released yet
+     */
+    synchronized boolean contains(ByteBuffer block) {
+        return usedSlots.containsKey(block);
+    }
+
+    /**
+     * @return number of blocks allocated in spill file
+     */
+    synchronized int blockCount() {
+        return usedSlots.size();
+    }
+
+    /**
+     * @return spill file size in bytes
+     */
+    synchronized long fileSize() {
+        return regions.size() * REGION_SIZE;
+    }
+
+    // mappings are removed by GC once regions and their blocks are not referenced anymore
+    private void releaseRegions() {
+        regions.clear();
+        slotCount = 0;
+    }
+
+    /**
+     * Closes spill file, regions are only released once all blocks are released : snapshots of file content may still
+     * reference blocks after file system is closed.
+     *
+     * @throws IOException if file can't be closed
+     */
+    synchronized void close() throws IOException {
+        closed = true;
+        freeSlots.clear();
+        if (usedSlots.isEmpty()) {
+            releaseRegions();
+        }
+        // mapped regions remain valid once channel is closed
+        if (null != channel) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
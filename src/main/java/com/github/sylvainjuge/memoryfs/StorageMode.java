@@ -0,0 +1,40 @@
+package com.github.sylvainjuge.memoryfs;
+
+/**
+ * Where file content is stored
+ */
+public enum StorageMode {
+
+    /**
+     * file content stored in java heap (default)
+     */
+    HEAP,
+
+    /**
+     * file content stored outside of java heap, in direct byte buffers
+     */
+    OFF_HEAP,
+
+    /**
+     * recently used file content stored in java heap, less recently used content stored outside of java heap, and
+     * least recently used content stored in a temporary file
+     */
+    TIERED;
+
+    /**
+     * @param value storage mode, or its name (case insensitive)
+     * @return storage mode
+     * @throws java.lang.IllegalArgumentException if value is not a valid storage mode
+     */
+    static StorageMode parse(Object value) {
+        if (value instanceof StorageMode) {
+            return (StorageMode) value;
+        }
+        for (StorageMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(String.valueOf(value))) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("unknown storage mode : " + value);
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlockPoolTest {
+
+    @Test
+    public void emptyByDefault() {
+        BlockPool pool = new BlockPool(1);
+        assertThat(pool.size()).isEqualTo(0);
+        assertThat(pool.poll()).isNull();
+        assertThat(pool.hits()).isEqualTo(0);
+        assertThat(pool.misses()).isEqualTo(1);
+    }
+
+    @Test
+    public void reuseReleasedBlocks() {
+        BlockPool pool = new BlockPool(2);
+        ByteBuffer first = ByteBuffer.allocate(FileData.BLOCK_SIZE);
+        ByteBuffer second = ByteBuffer.allocate(FileData.BLOCK_SIZE);
+        assertThat(pool.offer(first)).isTrue();
+        assertThat(pool.offer(second)).isTrue();
+        assertThat(pool.size()).isEqualTo(2);
+
+        assertThat(pool.poll()).isSameAs(second);
+        assertThat(pool.poll()).isSameAs(first);
+        assertThat(pool.poll()).isNull();
+        assertThat(pool.hits()).isEqualTo(2);
+        assertThat(pool.misses()).isEqualTo(1);
+    }
+
+    @Test
+    public void retainsAtMostMaxBlocks() {
+        BlockPool pool = new BlockPool(1);
+        assertThat(pool.offer(ByteBuffer.allocate(FileData.BLOCK_SIZE))).isTrue();
+        assertThat(pool.offer(ByteBuffer.allocate(FileData.BLOCK_SIZE))).isFalse();
+        assertThat(pool.size()).isEqualTo(1);
+
+        assertThat(pool.clear()).hasSize(1);
+        assertThat(pool.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void reusedBlocksAreCleared() {
+        BlockPool pool = new BlockPool(2);
+        ByteBuffer heap = ByteBuffer.allocate(FileData.BLOCK_SIZE);
+        ByteBuffer direct = ByteBuffer.allocateDirect(FileData.BLOCK_SIZE);
+        for (ByteBuffer block : new ByteBuffer[]{heap, direct}) {
+            block.put(0, (byte) 1);
+            block.put(FileData.BLOCK_SIZE - 1, (byte) 1);
+            block.position(10);
+            pool.offer(block);
+        }
+
+        for (int i = 0; i < 2; i++) {
+            ByteBuffer block = pool.poll();
+            assertThat(block.get(0)).isEqualTo((byte) 0);
+            assertThat(block.get(FileData.BLOCK_SIZE - 1)).isEqualTo((byte) 0);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void emptyPoolNotAllowed() {
+        new BlockPool(0);
+    }
+}
@@ -397,7 +397,7 @@ public class EntryTest {
     }
 
     @Test
-    public void copyFile() {
+    public void copyFile() throws IOException {
         // copy a single file
         // file data should be identical, but not the same instance
         Entry root = Entry.newRoot();
@@ -407,12 +407,28 @@ public class EntryTest {
     }
 
     @Test(expectedExceptions = ConflictException.class)
-    public void tryToCreateConflictThroughCopy() {
+    public void tryToCreateConflictThroughCopy() throws IOException {
         Entry root = Entry.newRoot();
         Entry file = Entry.newFile(root, "file");
         file.copy(root, "file");
     }
 
+    @Test
+    public void conflictingCopyReleasesCopiedData() throws IOException {
+        BlockStorage storage = BlockStorage.builder().capacity(100).build();
+        Entry root = Entry.newRoot();
+        FileData data = FileData.newEmpty(storage);
+        data.asOutputStream().write(new byte[40]);
+        Entry file = Entry.newFile(root, "file", data);
+        try {
+            file.copy(root, "file");
+            fail("copy conflicts with file");
+        } catch (ConflictException e) {
+            // expected
+        }
+        assertThat(storage.logicalSize()).isEqualTo(40);
+    }
+
     @Test
     public void createFileWithData() {
         Entry root = Entry.newRoot();
@@ -423,7 +439,7 @@ public class EntryTest {
     }
 
     @Test(enabled = false)
-    public void copyFolder() {
+    public void copyFolder() throws IOException {
         Entry root = Entry.newRoot();
         Entry folderToCopy = Entry.newDirectory(root, "toCopy");
         Entry folder = Entry.newDirectory(folderToCopy, "folder");
@@ -445,6 +461,79 @@ public class EntryTest {
         // - identical data as another file
     }
 
+    @Test
+    public void largeDirectoryIsIndexed() {
+        Entry root = Entry.newRoot();
+        Entry[] files = new Entry[1000];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = Entry.newFile(root, "f" + i);
+            assertThat(root.isIndexed()).isEqualTo(Entry.INDEX_THRESHOLD <= i);
+        }
+        // children are still listed in creation order
+        assertEntry(root).hasEntries(files);
+        for (int i = 0; i < files.length; i++) {
+            assertEntry(root).hasEntry("f" + i, files[i]);
+        }
+        assertEntry(root).doesNotHaveChild("f" + files.length);
+
+        try {
+            Entry.newFile(root, "f10");
+            fail("name conflict expected");
+        } catch (ConflictException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void deleteAndRenameInIndexedDirectory() {
+        Entry root = Entry.newRoot();
+        List<Entry> files = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            files.add(Entry.newFile(root, "f" + i));
+        }
+        // removes every other child, including last one
+        for (int i = 99; i >= 0; i -= 2) {
+            files.remove(i).delete();
+            assertEntry(root).doesNotHaveChild("f" + i);
+        }
+        for (Entry file : files) {
+            assertEntry(root).hasEntry(file.getPath().substring(1), file);
+        }
+
+        files.get(0).rename("renamed");
+        assertEntry(root)
+                .doesNotHaveChild("f0")
+                .hasEntry("renamed", files.get(0));
+
+        // children are added after last remaining child
+        Entry added = Entry.newFile(root, "added");
+        files.add(added);
+        assertEntry(root).hasEntries(files.toArray(new Entry[files.size()]));
+
+        for (Entry file : files) {
+            file.delete();
+        }
+        assertEntry(root).hasNoEntry();
+        assertThat(root.isIndexed()).isFalse();
+    }
+
+    @Test
+    public void moveFromIndexedDirectory() {
+        Entry root = Entry.newRoot();
+        Entry source = Entry.newDirectory(root, "source");
+        Entry target = Entry.newDirectory(root, "target");
+        for (int i = 0; i < 20; i++) {
+            Entry.newFile(source, "f" + i);
+        }
+        Entry moved = source.getChild("f19");
+        moved.move(target);
+        assertEntry(source).doesNotHaveChild("f19");
+        assertEntry(target).hasEntries(moved).hasEntry("f19", moved);
+
+        Entry.newFile(source, "f19");
+        assertThat(source.getChild("f19")).isNotSameAs(moved);
+    }
+
     private static Entry newFileWithNameAsData(Entry parent, String name) {
         Entry result = Entry.newFile(parent, name);
         try {
@@ -3,9 +3,17 @@ package com.github.sylvainjuge.memoryfs;
 import org.testng.annotations.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
@@ -69,7 +77,7 @@ public class FileDataTest {
     }
 
     @Test
-    public void dataCopyOnCopy() {
+    public void dataCopyOnCopy() throws IOException {
         byte[] bytes = new byte[]{1, 2, 3, 4};
         FileData data = assertData(FileData.fromData(bytes))
                 .hasContent(bytes)
@@ -82,6 +90,1277 @@ public class FileDataTest {
                 .isDistinctCopyOf(data);
     }
 
+    @Test
+    public void dataSpanningMultipleBlocks() throws IOException {
+        byte[] bytes = sequenceBytes(FileData.BLOCK_SIZE * 3 + 1);
+        FileData data = assertData(FileData.fromData(bytes))
+                .hasContent(bytes)
+                .hasSize(bytes.length)
+                .value();
+        TestEquals.checkHashCodeEqualsConsistency(true, data, FileData.fromData(bytes));
+        assertThat(data.hashCode()).isEqualTo(Arrays.hashCode(bytes));
+    }
+
+    @Test
+    public void hashCodeFollowsModifications() throws IOException {
+        byte[] bytes = sequenceBytes(FileData.BLOCK_SIZE + 10);
+        FileData data = FileData.fromData(Arrays.copyOf(bytes, 10));
+        assertThat(data.hashCode()).isEqualTo(Arrays.hashCode(Arrays.copyOf(bytes, 10)));
+
+        // cached hash is extended on append
+        data.asOutputStream().write(bytes, 10, bytes.length - 10);
+        assertThat(data.hashCode()).isEqualTo(Arrays.hashCode(bytes));
+
+        // copy keeps cached hash, but is modified independently
+        FileData copy = FileData.copy(data);
+        assertThat(copy.hashCode()).isEqualTo(data.hashCode());
+        copy.truncate(5);
+        assertThat(copy.hashCode()).isEqualTo(Arrays.hashCode(Arrays.copyOf(bytes, 5)));
+        assertThat(data.hashCode()).isEqualTo(Arrays.hashCode(bytes));
+
+        copy.extend(8);
+        assertThat(copy.hashCode()).isEqualTo(Arrays.hashCode(Arrays.copyOf(Arrays.copyOf(bytes, 5), 8)));
+
+        data.release();
+        assertThat(data.hashCode()).isEqualTo(Arrays.hashCode(new byte[0]));
+    }
+
+    @Test
+    public void equalsComparesContentOnly() throws IOException {
+        FileData first = FileData.fromData(new byte[]{1, 2, 3});
+        FileData second = FileData.fromData(new byte[]{1, 2, 4});
+        FileData longer = FileData.fromData(new byte[]{1, 2, 3, 4});
+        assertThat(first).isNotEqualTo(second);
+        assertThat(first).isNotEqualTo(longer);
+
+        // with cached hash codes
+        assertThat(first.hashCode()).isNotEqualTo(second.hashCode());
+        assertThat(first).isNotEqualTo(second);
+
+        // truncated content is not compared
+        longer.truncate(3);
+        assertThat(longer).isEqualTo(first);
+        second.truncate(2);
+        second.asOutputStream().write(3);
+        assertThat(second.hashCode()).isEqualTo(first.hashCode());
+        assertThat(second).isEqualTo(first);
+    }
+
+    @Test
+    public void appendAcrossBlockBoundaries() throws IOException {
+        byte[] bytes = sequenceBytes(FileData.BLOCK_SIZE * 2 + 10);
+        FileData data = FileData.newEmpty();
+        OutputStream output = data.asOutputStream();
+        int chunk = FileData.BLOCK_SIZE - 3;
+        for (int i = 0; i < bytes.length; i += chunk) {
+            output.write(bytes, i, Math.min(chunk, bytes.length - i));
+        }
+        assertData(data)
+                .hasContent(bytes)
+                .hasSize(bytes.length);
+    }
+
+    @Test
+    public void truncateAcrossBlocksThenAppend() throws IOException {
+        byte[] bytes = sequenceBytes(FileData.BLOCK_SIZE * 2 + 10);
+        FileData data = FileData.fromData(bytes);
+
+        int newSize = FileData.BLOCK_SIZE + 5;
+        data.truncate(newSize);
+        assertData(data)
+                .hasContent(Arrays.copyOf(bytes, newSize))
+                .hasSize(newSize);
+
+        byte[] appended = new byte[FileData.BLOCK_SIZE];
+        data.asOutputStream().write(appended);
+
+        byte[] expected = Arrays.copyOf(bytes, newSize + appended.length);
+        Arrays.fill(expected, newSize, expected.length, (byte) 0);
+        assertData(data)
+                .hasContent(expected)
+                .hasSize(expected.length);
+    }
+
+    @Test
+    public void inputStreamLimitedToSizeWhenCreated() throws IOException {
+        byte[] bytes = sequenceBytes(10);
+        FileData data = FileData.fromData(bytes);
+        InputStream input = data.asInputStream();
+        data.asOutputStream().write(new byte[5]);
+        assertThat(input).hasContentEqualTo(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void offHeapStorage() throws IOException {
+        byte[] bytes = sequenceBytes(FileData.BLOCK_SIZE + 10);
+        FileData data = FileData.newEmpty(BlockStorage.create(StorageMode.OFF_HEAP));
+        data.asOutputStream().write(bytes);
+        assertData(data)
+                .hasContent(bytes)
+                .hasSize(bytes.length);
+
+        FileData copy = FileData.copy(data);
+        assertData(copy)
+                .isDistinctCopyOf(data)
+                .hasContent(bytes);
+        TestEquals.checkHashCodeEqualsConsistency(true, data, copy, FileData.fromData(bytes));
+    }
+
+    @Test
+    public void releaseMakesDataEmpty() {
+        FileData data = FileData.fromData(sequenceBytes(FileData.BLOCK_SIZE + 10));
+        data.release();
+        assertData(data).isEmpty();
+    }
+
+    @Test
+    public void spillToFileAboveThreshold() throws IOException {
+        BlockStorage storage = BlockStorage.builder().spillThreshold(FileData.BLOCK_SIZE).build();
+        try {
+            FileData data = FileData.newEmpty(storage);
+            byte[] bytes = sequenceBytes(FileData.BLOCK_SIZE * 2);
+            OutputStream output = data.asOutputStream();
+
+            output.write(bytes, 0, FileData.BLOCK_SIZE);
+            assertThat(data.isSpilled()).isFalse();
+            assertThat(storage.spillFile().blockCount()).isEqualTo(0);
+
+            output.write(bytes, FileData.BLOCK_SIZE, FileData.BLOCK_SIZE);
+            assertThat(data.isSpilled()).isTrue();
+            assertThat(storage.spillFile().blockCount()).isEqualTo(2);
+            assertData(data)
+                    .hasContent(bytes)
+                    .hasSize(bytes.length);
+
+            FileData copy = FileData.copy(data);
+            assertThat(copy.isSpilled()).isTrue();
+            assertData(copy).isDistinctCopyOf(data);
+
+            copy.release();
+            data.truncate(1);
+            assertThat(storage.spillFile().blockCount()).isEqualTo(1);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void spillToFileWhenExtendedAboveThreshold() throws IOException {
+        BlockStorage storage = BlockStorage.builder().spillThreshold(FileData.BLOCK_SIZE).build();
+        try {
+            FileData data = FileData.newEmpty(storage);
+            data.write(0, sequenceBytes(10), 0, 10);
+            assertThat(data.isSpilled()).isFalse();
+
+            data.extend(3 * FileData.BLOCK_SIZE);
+            assertThat(data.isSpilled()).isTrue();
+
+            byte[] bytes = sequenceBytes(10);
+            data.write(2 * FileData.BLOCK_SIZE, bytes, 0, bytes.length);
+            assertThat(storage.spillFile().contains(data.block(0).currentBuffer())).isTrue();
+            assertThat(storage.spillFile().contains(data.block(2).currentBuffer())).isTrue();
+
+            // writing after end of file also extends it
+            FileData other = FileData.newEmpty(storage);
+            other.write(2 * FileData.BLOCK_SIZE, bytes, 0, bytes.length);
+            assertThat(other.isSpilled()).isTrue();
+            assertThat(storage.spillFile().contains(other.block(2).currentBuffer())).isTrue();
+            assertThat(storage.spillFile().blockCount()).isEqualTo(3);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void copySharesBlocksUntilModified() throws IOException {
+        byte[] bytes = sequenceBytes(FileData.BLOCK_SIZE + 10);
+        FileData data = FileData.fromData(bytes);
+        FileData copy = FileData.copy(data);
+
+        assertThat(copy.block(0)).isSameAs(data.block(0));
+        assertThat(copy.block(1)).isSameAs(data.block(1));
+
+        // appending to copy only copies the last (partial) block
+        copy.asOutputStream().write(new byte[]{42});
+        assertThat(copy.block(0)).isSameAs(data.block(0));
+        assertThat(copy.block(1)).isNotSameAs(data.block(1));
+
+        assertData(data)
+                .hasContent(bytes)
+                .hasSize(bytes.length);
+
+        byte[] expected = Arrays.copyOf(bytes, bytes.length + 1);
+        expected[bytes.length] = 42;
+        assertData(copy)
+                .hasContent(expected)
+                .hasSize(expected.length);
+    }
+
+    @Test
+    public void extendLeavesUnallocatedHole() throws IOException {
+        BlockStorage storage = BlockStorage.create(StorageMode.HEAP);
+        FileData data = FileData.newEmpty(storage);
+        data.asOutputStream().write(new byte[]{1, 2, 3});
+
+        long size = 100L * FileData.BLOCK_SIZE;
+        data.extend(size);
+        assertThat(data.size()).isEqualTo(size);
+        assertThat(storage.logicalSize()).isEqualTo(size);
+        assertThat(storage.physicalSize()).isEqualTo(FileData.BLOCK_SIZE);
+        assertThat(data.block(1)).isNull();
+
+        byte[] expected = new byte[(int) size];
+        expected[0] = 1;
+        expected[1] = 2;
+        expected[2] = 3;
+        assertData(data).hasContent(expected);
+
+        // smaller size is ignored
+        data.extend(10);
+        assertThat(data.size()).isEqualTo(size);
+
+        data.release();
+        assertThat(storage.physicalSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void writeInHoleAllocatesBlock() throws IOException {
+        BlockStorage storage = BlockStorage.create(StorageMode.OFF_HEAP);
+        FileData data = FileData.newEmpty(storage);
+        data.extend(FileData.BLOCK_SIZE + 10);
+        data.asOutputStream().write(new byte[]{1, 2});
+        assertThat(data.block(0)).isNull();
+        assertThat(storage.physicalSize()).isEqualTo(FileData.BLOCK_SIZE);
+
+        byte[] expected = new byte[FileData.BLOCK_SIZE + 12];
+        expected[expected.length - 2] = 1;
+        expected[expected.length - 1] = 2;
+        assertData(data).hasContent(expected);
+    }
+
+    @Test
+    public void writeOverwritesExistingData() throws IOException {
+        byte[] bytes = sequenceBytes(3 * FileData.BLOCK_SIZE);
+        FileData data = FileData.fromData(bytes);
+        FileData copy = FileData.copy(data);
+        int hash = data.hashCode();
+
+        // overwrite across block boundary, then past end of file
+        byte[] written = new byte[]{-1, -2, -3, -4};
+        data.write(FileData.BLOCK_SIZE - 2, written, 0, written.length);
+        data.write(bytes.length - 2, written, 0, written.length);
+
+        byte[] expected = Arrays.copyOf(bytes, bytes.length + 2);
+        System.arraycopy(written, 0, expected, FileData.BLOCK_SIZE - 2, written.length);
+        System.arraycopy(written, 0, expected, bytes.length - 2, written.length);
+        assertData(data).hasContent(expected);
+        assertThat(data.hashCode()).isNotEqualTo(hash).isEqualTo(Arrays.hashCode(expected));
+
+        // copy is not modified
+        assertData(copy).hasContent(bytes);
+        assertThat(copy.block(1)).isNotSameAs(data.block(1));
+    }
+
+    @Test
+    public void writeInlineData() throws IOException {
+        FileData data = FileData.fromData(new byte[]{1, 2, 3});
+        data.write(1, new byte[]{4}, 0, 1);
+        data.write(5, new byte[]{5}, 0, 1);
+        assertThat(data.isInline()).isTrue();
+        assertData(data).hasContent(new byte[]{1, 4, 3, 0, 0, 5});
+    }
+
+    @Test
+    public void writeDirectBuffer() throws IOException {
+        FileData data = FileData.fromData(new byte[]{1, 2, 3});
+        ByteBuffer src = ByteBuffer.allocateDirect(2);
+        src.put(new byte[]{4, 5}).flip();
+        assertThat(data.write(2, src)).isEqualTo(2);
+        assertThat(src.hasRemaining()).isFalse();
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(10);
+        assertThat(data.read(1, dst)).isEqualTo(3);
+        assertThat(dst.position()).isEqualTo(3);
+        assertData(data).hasContent(new byte[]{1, 2, 4, 5});
+    }
+
+    @Test
+    public void readBlocksIntoDirectBuffer() throws IOException {
+        for (StorageMode mode : new StorageMode[]{StorageMode.HEAP, StorageMode.OFF_HEAP}) {
+            BlockStorage storage = BlockStorage.create(mode);
+            try {
+                byte[] bytes = sequenceBytes(FileData.BLOCK_SIZE + 10);
+                FileData data = FileData.newEmpty(storage);
+                data.asOutputStream().write(bytes);
+                // hole after end of written data
+                data.extend(3 * FileData.BLOCK_SIZE);
+
+                ByteBuffer dst = ByteBuffer.allocateDirect(2 * FileData.BLOCK_SIZE);
+                assertThat(data.read(5, dst)).isEqualTo(dst.capacity());
+                assertThat(dst.hasRemaining()).isFalse();
+
+                byte[] expected = Arrays.copyOf(Arrays.copyOfRange(bytes, 5, bytes.length), dst.capacity());
+                byte[] actual = new byte[dst.capacity()];
+                ((ByteBuffer) dst.flip()).get(actual);
+                assertThat(actual).isEqualTo(expected);
+            } finally {
+                storage.close();
+            }
+        }
+    }
+
+    @Test
+    public void writeBlocksFromDirectBuffer() throws IOException {
+        for (StorageMode mode : new StorageMode[]{StorageMode.HEAP, StorageMode.OFF_HEAP}) {
+            BlockStorage storage = BlockStorage.create(mode);
+            try {
+                byte[] bytes = sequenceBytes(2 * FileData.BLOCK_SIZE);
+                ByteBuffer src = ByteBuffer.allocateDirect(bytes.length + 10);
+                src.put(bytes).flip();
+                src.limit(bytes.length);
+
+                FileData data = FileData.newEmpty(storage);
+                data.write(0, new byte[10], 0, 10);
+                // overwrites existing data, then extends file
+                assertThat(data.write(5, src)).isEqualTo(bytes.length);
+                assertThat(src.hasRemaining()).isFalse();
+                assertThat(src.limit()).isEqualTo(bytes.length);
+
+                byte[] expected = new byte[5 + bytes.length];
+                System.arraycopy(bytes, 0, expected, 5, bytes.length);
+                byte[] actual = new byte[expected.length];
+                assertThat(data.read(0, actual, 0, actual.length)).isEqualTo(actual.length);
+                assertThat(actual).isEqualTo(expected);
+            } finally {
+                storage.close();
+            }
+        }
+    }
+
+    @Test
+    public void transferToWritesReadOnlyViews() throws IOException {
+        byte[] bytes = sequenceBytes(2 * FileData.BLOCK_SIZE);
+        FileData data = FileData.fromData(bytes);
+        data.extend(3 * FileData.BLOCK_SIZE);
+        final List<ByteBuffer> views = new ArrayList<>();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel target = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                views.add(src);
+                int n = src.remaining();
+                byte[] b = new byte[n];
+                src.duplicate().get(b);
+                out.write(b);
+                src.position(src.limit());
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        long count = 2 * FileData.BLOCK_SIZE;
+        assertThat(data.transferTo(10, count, target)).isEqualTo(count);
+        byte[] expected = Arrays.copyOf(Arrays.copyOfRange(bytes, 10, bytes.length), (int) count);
+        assertThat(out.toByteArray()).isEqualTo(expected);
+        // one view per block, including hole
+        assertThat(views).hasSize(3);
+        for (ByteBuffer view : views) {
+            assertThat(view.isReadOnly()).isTrue();
+        }
+
+        // nothing to transfer after end of file
+        assertThat(data.transferTo(data.size(), 10, target)).isEqualTo(0);
+    }
+
+    @Test
+    public void transferToDoesNotHoldLockWhileWriting() throws Exception {
+        byte[] bytes = sequenceBytes(2 * FileData.BLOCK_SIZE);
+        final FileData data = FileData.fromData(bytes);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        WritableByteChannel target = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                // file is modified by another thread while target writes
+                Thread writer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            data.write(0, new byte[2 * FileData.BLOCK_SIZE], 0, 2 * FileData.BLOCK_SIZE);
+                        } catch (IOException e) {
+                            failure.set(e);
+                        }
+                    }
+                });
+                writer.start();
+                try {
+                    writer.join(5000);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                assertThat(writer.isAlive()).isFalse();
+                int n = src.remaining();
+                byte[] b = new byte[n];
+                src.get(b);
+                out.write(b);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        assertThat(data.transferTo(0, FileData.BLOCK_SIZE, target)).isEqualTo(FileData.BLOCK_SIZE);
+        assertThat(failure.get()).isNull();
+        // block being transferred is copied by writer, thus target reads content as it was before write
+        assertThat(out.toByteArray()).isEqualTo(Arrays.copyOf(bytes, FileData.BLOCK_SIZE));
+        assertData(data).hasContent(new byte[2 * FileData.BLOCK_SIZE]);
+    }
+
+    @Test
+    public void transferSharesAlignedFullBlocks() throws IOException {
+        byte[] bytes = sequenceBytes(2 * FileData.BLOCK_SIZE + 10);
+        FileData src = FileData.fromData(bytes);
+        FileData dst = FileData.fromData(new byte[]{1, 2, 3});
+        dst.extend(FileData.BLOCK_SIZE);
+
+        assertThat(FileData.transfer(src, 0, dst, FileData.BLOCK_SIZE, bytes.length)).isEqualTo(bytes.length);
+        assertThat(dst.block(1)).isSameAs(src.block(0));
+        assertThat(dst.block(2)).isSameAs(src.block(1));
+        // last partial block is copied
+        assertThat(dst.block(3)).isNotSameAs(src.block(2));
+
+        byte[] expected = new byte[FileData.BLOCK_SIZE + bytes.length];
+        expected[0] = 1;
+        expected[1] = 2;
+        expected[2] = 3;
+        System.arraycopy(bytes, 0, expected, FileData.BLOCK_SIZE, bytes.length);
+        assertData(dst).hasContent(expected);
+
+        // shared blocks are copied on write
+        dst.write(FileData.BLOCK_SIZE, new byte[]{-1}, 0, 1);
+        assertThat(dst.block(1)).isNotSameAs(src.block(0));
+        assertData(src).hasContent(bytes);
+    }
+
+    @Test
+    public void transferCopiesUnalignedData() throws IOException {
+        byte[] bytes = sequenceBytes(2 * FileData.BLOCK_SIZE);
+        FileData src = FileData.fromData(bytes);
+        FileData dst = FileData.newEmpty();
+
+        assertThat(FileData.transfer(src, 1, dst, 0, bytes.length)).isEqualTo(bytes.length - 1);
+        assertThat(dst.block(0)).isNotSameAs(src.block(0));
+        assertData(dst).hasContent(Arrays.copyOfRange(bytes, 1, bytes.length));
+    }
+
+    @Test
+    public void mapSharesStorageWithFile() throws IOException {
+        byte[] bytes = sequenceBytes(3 * FileData.BLOCK_SIZE);
+        FileData data = FileData.fromData(bytes);
+        int hash = data.hashCode();
+
+        ByteBuffer map = data.map(FileData.BLOCK_SIZE - 8, 16, true);
+        assertThat(map.capacity()).isEqualTo(16);
+        assertThat(map.get(0)).isEqualTo(bytes[FileData.BLOCK_SIZE - 8]);
+
+        // writes through mapping are file writes, across blocks
+        map.putLong(4, -1L);
+        byte[] expected = bytes.clone();
+        Arrays.fill(expected, FileData.BLOCK_SIZE - 4, FileData.BLOCK_SIZE + 4, (byte) -1);
+        assertData(data).hasContent(expected);
+        assertThat(data.hashCode()).isNotEqualTo(hash).isEqualTo(Arrays.hashCode(expected));
+
+        // file writes are visible through mapping, and through typed views
+        data.write(FileData.BLOCK_SIZE + 4, new byte[]{0, 0, 0, 42}, 0, 4);
+        assertThat(map.asIntBuffer().get(3)).isEqualTo(42);
+
+        // mapping a region within a mapped region shares the same buffer
+        ByteBuffer other = data.map(FileData.BLOCK_SIZE, 4, false);
+        assertThat(other.isReadOnly()).isTrue();
+        assertThat(other.getInt(0)).isEqualTo(-1);
+        map.putInt(8, 7);
+        assertThat(other.getInt(0)).isEqualTo(7);
+    }
+
+    @Test
+    public void mapBeyondEndOfFileExtendsFile() throws IOException {
+        FileData data = FileData.fromData(new byte[]{1, 2, 3});
+        ByteBuffer map = data.map(2, 10, true);
+        assertThat(data.size()).isEqualTo(12);
+        map.put(9, (byte) 4);
+        assertData(data).hasContent(new byte[]{1, 2, 3, 0, 0, 0, 0, 0, 0, 0, 0, 4});
+        assertThat(data.isInline()).isFalse();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void readOnlyMapBeyondEndOfFile() throws IOException {
+        FileData.fromData(new byte[]{1, 2, 3}).map(2, 10, false);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void mapPartiallyOverlappingRegion() throws IOException {
+        FileData data = FileData.fromData(sequenceBytes(3 * FileData.BLOCK_SIZE));
+        data.map(0, FileData.BLOCK_SIZE * 2, true);
+        data.map(FileData.BLOCK_SIZE, FileData.BLOCK_SIZE * 2, true);
+    }
+
+    @Test
+    public void mappedBlocksAreNotShared() throws IOException {
+        BlockStorage storage = BlockStorage.builder()
+                .compressAfter(60000)
+                .build();
+        try {
+            byte[] bytes = new byte[2 * FileData.BLOCK_SIZE];
+            FileData data = FileData.newEmpty(storage);
+            data.asOutputStream().write(bytes);
+            ByteBuffer map = data.map(0, bytes.length, true);
+
+            FileData copy = FileData.copy(data);
+            assertThat(copy.block(0)).isNotSameAs(data.block(0));
+            map.put(0, (byte) 1);
+            assertData(copy).hasContent(bytes);
+
+            // mapped blocks are never compressed
+            storage.compressColdBlocks(System.currentTimeMillis() + 120000);
+            assertThat(data.block(0).isCompressed()).isFalse();
+            assertThat(map.get(0)).isEqualTo((byte) 1);
+
+            data.release();
+            copy.release();
+            assertThat(storage.physicalSize()).isEqualTo(0);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void snapshotSharesStorageWithoutLogicalSize() throws IOException {
+        BlockStorage storage = BlockStorage.create(StorageMode.HEAP);
+        byte[] bytes = sequenceBytes(2 * FileData.BLOCK_SIZE);
+        FileData data = FileData.newEmpty(storage);
+        data.asOutputStream().write(bytes);
+
+        FileData snapshot = data.snapshot();
+        assertThat(snapshot.block(0)).isSameAs(data.block(0));
+        assertThat(storage.logicalSize()).isEqualTo(bytes.length);
+
+        data.write(0, new byte[]{-1}, 0, 1);
+        assertData(snapshot).hasContent(bytes);
+
+        snapshot.release();
+        assertThat(storage.logicalSize()).isEqualTo(bytes.length);
+        assertThat(storage.physicalSize()).isEqualTo(bytes.length);
+    }
+
+    @Test
+    public void snapshotSharesInlineContent() throws IOException {
+        BlockStorage storage = BlockStorage.create(StorageMode.HEAP);
+        FileData data = FileData.newEmpty(storage);
+        data.asOutputStream().write(new byte[]{1, 2, 3});
+        long physicalSize = storage.physicalSize();
+
+        FileData snapshot = data.snapshot();
+        assertThat(storage.physicalSize()).isEqualTo(physicalSize);
+
+        // inline content is copied on first write, then modified in place
+        data.write(0, new byte[]{4}, 0, 1);
+        data.write(1, new byte[]{5}, 0, 1);
+        assertData(snapshot).hasContent(new byte[]{1, 2, 3});
+        assertData(data).hasContent(new byte[]{4, 5, 3});
+
+        FileData other = data.snapshot();
+        data.truncate(1);
+        data.extend(2);
+        assertData(other).hasContent(new byte[]{4, 5, 3});
+        assertData(data).hasContent(new byte[]{4, 0});
+
+        snapshot.release();
+        other.release();
+        assertData(data).hasContent(new byte[]{4, 0});
+        assertThat(storage.physicalSize()).isEqualTo(physicalSize);
+    }
+
+    @Test
+    public void snapshotMovedToBlocksKeepsInlineSize() throws IOException {
+        BlockStorage storage = BlockStorage.create(StorageMode.HEAP);
+        FileData data = FileData.newEmpty(storage);
+        data.asOutputStream().write(new byte[]{1, 2, 3, 4});
+        assertThat(storage.physicalSize()).isEqualTo(4);
+
+        // inline content of snapshot is only included in storage size of data
+        FileData snapshot = data.snapshot();
+        snapshot.map(0, 4, false);
+        assertThat(storage.physicalSize()).isEqualTo(4 + FileData.BLOCK_SIZE);
+
+        snapshot.release();
+        data.release();
+        assertThat(storage.physicalSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void noSnapshotOfMappedData() throws IOException {
+        FileData data = FileData.fromData(sequenceBytes(10));
+        data.map(0, 10, true);
+        assertThat(data.snapshot()).isSameAs(data);
+    }
+
+    @Test
+    public void singleByteStreamReadsAndWrites() throws IOException {
+        FileData data = FileData.newEmpty();
+        OutputStream append = data.newOutputStream(true);
+        int size = FileData.BLOCK_SIZE + 10;
+        for (int i = 0; i < size; i++) {
+            append.write(i);
+        }
+        data.extend(size + FileData.BLOCK_SIZE);
+        // overwrites inline content, then blocks and hole
+        OutputStream overwrite = data.newOutputStream(false);
+        overwrite.write(-1);
+        assertThat(data.read(0)).isEqualTo(0xff);
+        assertThat(data.read(FileData.BLOCK_SIZE)).isEqualTo(FileData.BLOCK_SIZE & 0xff);
+        data.write(size + 1, (byte) 7);
+
+        InputStream input = data.asInputStream();
+        assertThat(input.read()).isEqualTo(0xff);
+        for (int i = 1; i < size; i++) {
+            assertThat(input.read()).isEqualTo(i & 0xff);
+        }
+        assertThat(input.read()).isEqualTo(0);
+        assertThat(input.read()).isEqualTo(7);
+        assertThat(input.skip(FileData.BLOCK_SIZE)).isEqualTo(FileData.BLOCK_SIZE - 2);
+        assertThat(input.read()).isEqualTo(-1);
+        assertThat(data.read(data.size())).isEqualTo(-1);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void readClosedInputStream() throws IOException {
+        InputStream input = FileData.fromData(new byte[]{1}).newSnapshotInputStream();
+        input.close();
+        input.read();
+    }
+
+    @Test
+    public void writeToOutputStream() throws IOException {
+        byte[] bytes = sequenceBytes(FileData.BLOCK_SIZE + 10);
+        FileData data = FileData.fromData(bytes);
+        data.extend(bytes.length + 5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(data.writeTo(5, Long.MAX_VALUE, out)).isEqualTo(bytes.length);
+        assertThat(out.toByteArray()).isEqualTo(Arrays.copyOf(Arrays.copyOfRange(bytes, 5, bytes.length), bytes.length));
+    }
+
+    @Test
+    public void snapshotInputStreamReleasedOnClose() throws IOException {
+        BlockStorage storage = BlockStorage.create(StorageMode.HEAP);
+        FileData data = FileData.newEmpty(storage);
+        data.asOutputStream().write(sequenceBytes(FileData.BLOCK_SIZE));
+        InputStream in = data.newSnapshotInputStream();
+        data.truncate(0);
+        assertThat(storage.physicalSize()).isEqualTo(FileData.BLOCK_SIZE);
+        assertThat(in.read()).isEqualTo(0);
+        in.close();
+        in.close();
+        assertThat(storage.physicalSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void concurrentReadsSeeCompleteWrites() throws Exception {
+        final FileData data = FileData.fromData(new byte[2 * FileData.BLOCK_SIZE]);
+        final int writes = 1000;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        // each write replaces whole content with a single value, truncating and growing file again
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] content = new byte[2 * FileData.BLOCK_SIZE];
+                try {
+                    for (int i = 1; i <= writes; i++) {
+                        Arrays.fill(content, (byte) i);
+                        data.truncate(FileData.BLOCK_SIZE);
+                        data.write(0, content, 0, content.length);
+                    }
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        writer.start();
+        byte[] read = new byte[FileData.BLOCK_SIZE];
+        while (writer.isAlive()) {
+            // file may be truncated between writes, but each read must only see a single write
+            int n = data.read(FileData.BLOCK_SIZE / 2, read, 0, read.length);
+            assertThat(n).isGreaterThan(0);
+            for (int i = 0; i < n; i++) {
+                assertThat(read[i]).isEqualTo(read[0]);
+            }
+        }
+        writer.join();
+        assertThat(failure.get()).isNull();
+        assertThat(data.size()).isEqualTo(2 * FileData.BLOCK_SIZE);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void releasedBlockCanNotBeRead() throws IOException {
+        FileData data = FileData.fromData(new byte[FileData.BLOCK_SIZE]);
+        Block block = data.block(0);
+        data.release();
+        block.get(0, new byte[1], 0, 1, false);
+    }
+
+    @Test
+    public void extendAfterTruncateReadsZeros() throws IOException {
+        byte[] bytes = sequenceBytes(20);
+        FileData data = FileData.fromData(bytes);
+        FileData copy = FileData.copy(data);
+        data.truncate(5);
+        data.extend(20);
+
+        byte[] expected = Arrays.copyOf(bytes, 20);
+        Arrays.fill(expected, 5, 20, (byte) 0);
+        assertData(data).hasContent(expected);
+        assertData(copy).hasContent(bytes);
+    }
+
+    @Test
+    public void reusePooledBlocks() throws IOException {
+        BlockStorage storage = BlockStorage.builder()
+                .mode(StorageMode.OFF_HEAP)
+                .poolSize(FileData.BLOCK_SIZE * 2)
+                .build();
+        try {
+            FileData first = FileData.newEmpty(storage);
+            first.asOutputStream().write(sequenceBytes(FileData.BLOCK_SIZE * 3));
+            first.truncate(FileData.BLOCK_SIZE);
+            first.release();
+            // pool retains only 2 blocks
+            assertThat(storage.pool().size()).isEqualTo(2);
+            assertThat(storage.physicalSize()).isEqualTo(0);
+
+            // pooled blocks still contain stale data, which must not be visible
+            FileData second = FileData.newEmpty(storage);
+            second.asOutputStream().write(new byte[]{42});
+            second.extend(10);
+            byte[] expected = new byte[10];
+            expected[0] = 42;
+            assertData(second).hasContent(expected);
+            assertThat(storage.pool().size()).isEqualTo(1);
+            assertThat(storage.pool().hits()).isEqualTo(1);
+        } finally {
+            storage.close();
+        }
+        assertThat(storage.pool().size()).isEqualTo(0);
+    }
+
+    @Test
+    public void noPoolByDefault() {
+        assertThat(BlockStorage.create(StorageMode.HEAP).pool()).isNull();
+    }
+
+    @Test
+    public void maxSizeIsEnforced() throws IOException {
+        FileData data = FileData.fromData(new byte[]{1});
+        try {
+            data.extend(FileData.MAX_SIZE + 1);
+            fail("max size exceeded");
+        } catch (IOException e) {
+            // expected
+        }
+        assertThat(data.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void mappingIsIncludedInCapacity() throws IOException {
+        BlockStorage storage = BlockStorage.builder().capacity(100).build();
+        FileData data = FileData.newEmpty(storage);
+        data.map(0, 60, true);
+        assertThat(storage.logicalSize()).isEqualTo(60);
+        try {
+            data.map(0, 101, true);
+            fail("capacity exceeded");
+        } catch (NoSpaceLeftException e) {
+            // expected
+        }
+        assertThat(storage.logicalSize()).isEqualTo(60);
+    }
+
+    @Test
+    public void releasedDataCanNotBeWritten() throws IOException {
+        BlockStorage storage = BlockStorage.builder().capacity(100).build();
+        FileData data = FileData.newEmpty(storage);
+        data.asOutputStream().write(new byte[60]);
+        data.release();
+        assertThat(storage.logicalSize()).isEqualTo(0);
+
+        // writes through channels still open once file is deleted would use capacity that is never given back
+        try {
+            data.write(0, new byte[60], 0, 60);
+            fail("data is released");
+        } catch (DeletedFileException e) {
+            // expected
+        }
+        try {
+            data.append(ByteBuffer.wrap(new byte[60]));
+            fail("data is released");
+        } catch (DeletedFileException e) {
+            // expected
+        }
+        try {
+            data.extend(60);
+            fail("data is released");
+        } catch (DeletedFileException e) {
+            // expected
+        }
+        assertThat(data.size()).isEqualTo(0);
+        assertThat(storage.logicalSize()).isEqualTo(0);
+
+        // whole capacity is still available
+        FileData.newEmpty(storage).extend(100);
+    }
+
+    @Test
+    public void storageCapacityIsEnforced() throws IOException {
+        BlockStorage storage = BlockStorage.builder().capacity(100).build();
+        FileData data = FileData.newEmpty(storage);
+        data.asOutputStream().write(new byte[60]);
+        try {
+            data.asOutputStream().write(new byte[41]);
+            fail("capacity exceeded");
+        } catch (NoSpaceLeftException e) {
+            // expected
+        }
+        try {
+            data.extend(101);
+            fail("capacity exceeded");
+        } catch (NoSpaceLeftException e) {
+            // expected
+        }
+        assertThat(data.size()).isEqualTo(60);
+        assertThat(storage.logicalSize()).isEqualTo(60);
+
+        data.extend(100);
+        assertThat(storage.logicalSize()).isEqualTo(100);
+        data.truncate(10);
+        assertThat(FileData.copy(data).size()).isEqualTo(10);
+        assertThat(storage.logicalSize()).isEqualTo(20);
+    }
+
+    @Test
+    public void gatheringWriteIsNotPartiallyWrittenWhenCapacityIsExceeded() throws IOException {
+        BlockStorage storage = BlockStorage.builder().capacity(100).build();
+        FileData data = FileData.newEmpty(storage);
+        ByteBuffer[] srcs = {ByteBuffer.wrap(new byte[60]), ByteBuffer.wrap(new byte[60])};
+        try {
+            data.write(0, srcs, 0, srcs.length);
+            fail("capacity exceeded");
+        } catch (NoSpaceLeftException e) {
+            // expected
+        }
+        try {
+            data.append(srcs, 0, srcs.length);
+            fail("capacity exceeded");
+        } catch (NoSpaceLeftException e) {
+            // expected
+        }
+        assertThat(srcs[0].remaining()).isEqualTo(60);
+        assertThat(srcs[1].remaining()).isEqualTo(60);
+        assertThat(data.size()).isEqualTo(0);
+        assertThat(storage.logicalSize()).isEqualTo(0);
+
+        srcs[1].limit(40);
+        assertThat(data.append(srcs, 0, srcs.length)).isEqualTo(100);
+        assertThat(data.size()).isEqualTo(100);
+        assertThat(storage.logicalSize()).isEqualTo(100);
+    }
+
+    @Test
+    public void smallFileContentIsInline() throws IOException {
+        BlockStorage storage = BlockStorage.create(StorageMode.HEAP);
+        byte[] bytes = sequenceBytes(BlockStorage.INLINE_LIMIT + 1);
+        FileData data = FileData.newEmpty(storage);
+        assertThat(data.isInline()).isTrue();
+
+        OutputStream output = data.asOutputStream();
+        output.write(bytes, 0, 10);
+        output.write(bytes, 10, BlockStorage.INLINE_LIMIT - 10);
+        assertThat(data.isInline()).isTrue();
+        assertThat(storage.physicalSize()).isEqualTo(BlockStorage.INLINE_LIMIT);
+        assertData(data).hasContent(Arrays.copyOf(bytes, BlockStorage.INLINE_LIMIT));
+
+        FileData copy = FileData.copy(data);
+        assertThat(copy.isInline()).isTrue();
+        assertData(copy).isDistinctCopyOf(data);
+
+        // content is moved to blocks when file grows
+        output.write(bytes, BlockStorage.INLINE_LIMIT, 1);
+        assertThat(data.isInline()).isFalse();
+        assertData(data).hasContent(bytes);
+        assertData(copy).hasContent(Arrays.copyOf(bytes, BlockStorage.INLINE_LIMIT));
+        assertThat(storage.physicalSize()).isEqualTo(FileData.BLOCK_SIZE + BlockStorage.INLINE_LIMIT);
+
+        copy.release();
+        data.release();
+        assertThat(storage.physicalSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void extendInlineContentAfterTruncate() throws IOException {
+        FileData data = FileData.fromData(new byte[]{1, 2, 3, 4});
+        data.truncate(2);
+        data.extend(6);
+        assertThat(data.isInline()).isTrue();
+        assertData(data).hasContent(new byte[]{1, 2, 0, 0, 0, 0});
+
+        data.extend(BlockStorage.INLINE_LIMIT + 1);
+        assertThat(data.isInline()).isFalse();
+        byte[] expected = new byte[BlockStorage.INLINE_LIMIT + 1];
+        expected[0] = 1;
+        expected[1] = 2;
+        assertData(data).hasContent(expected);
+    }
+
+    @Test
+    public void offHeapContentIsNeverInline() throws IOException {
+        FileData data = FileData.newEmpty(BlockStorage.create(StorageMode.OFF_HEAP));
+        data.asOutputStream().write(new byte[]{1});
+        assertThat(data.isInline()).isFalse();
+    }
+
+    @Test
+    public void tieredStorage() throws IOException {
+        BlockStorage storage = BlockStorage.builder()
+                .mode(StorageMode.TIERED)
+                .hotTierSize(4 * FileData.BLOCK_SIZE)
+                .warmTierSize(4 * FileData.BLOCK_SIZE)
+                .build();
+        try {
+            byte[] bytes = new byte[12 * FileData.BLOCK_SIZE];
+            new Random(42).nextBytes(bytes);
+            FileData data = FileData.newEmpty(storage);
+            data.asOutputStream().write(bytes);
+
+            // new blocks are stored in highest tier that is not full
+            assertThat(data.block(0).currentBuffer().isDirect()).isFalse();
+            assertThat(storage.spillFile().contains(data.block(11).currentBuffer())).isTrue();
+            assertThat(tierSize(storage, BlockStorage.Tier.HOT)).isLessThanOrEqualTo(4);
+            assertThat(tierSize(storage, BlockStorage.Tier.WARM)).isLessThanOrEqualTo(4);
+            assertThat(tierSize(storage, BlockStorage.Tier.COLD)).isGreaterThanOrEqualTo(4);
+
+            // blocks are moved to lower tiers when tiers are almost full
+            long now = System.currentTimeMillis() + 1000;
+            storage.moveToLowerTiers(now);
+            assertThat(tierSize(storage, BlockStorage.Tier.HOT)).isLessThanOrEqualTo(3);
+            assertThat(tierSize(storage, BlockStorage.Tier.WARM)).isLessThanOrEqualTo(3);
+            assertThat(tierSize(storage, BlockStorage.Tier.HOT)
+                    + tierSize(storage, BlockStorage.Tier.WARM)
+                    + tierSize(storage, BlockStorage.Tier.COLD)).isEqualTo(12);
+
+            // a single pass does not move block back to hot tier
+            byte[] block = new byte[FileData.BLOCK_SIZE];
+            assertThat(data.read(11 * FileData.BLOCK_SIZE, block, 0, block.length)).isEqualTo(block.length);
+            assertThat(data.read(11 * FileData.BLOCK_SIZE, block, 0, block.length)).isEqualTo(block.length);
+            assertThat(storage.spillFile().contains(data.block(11).currentBuffer())).isTrue();
+
+            // blocks accessed again later are moved back to hot tier, which is transparent to readers
+            storage.moveToLowerTiers(now + 1000);
+            assertThat(data.read(11 * FileData.BLOCK_SIZE, block, 0, block.length)).isEqualTo(block.length);
+            assertThat(data.block(11).currentBuffer().isDirect()).isFalse();
+            assertThat(storage.spillFile().contains(data.block(11).currentBuffer())).isFalse();
+            assertThat(block).isEqualTo(Arrays.copyOfRange(bytes, 11 * FileData.BLOCK_SIZE, bytes.length));
+            assertData(data).hasContent(bytes);
+
+            data.release();
+            assertThat(tierSize(storage, BlockStorage.Tier.HOT)).isEqualTo(0);
+            assertThat(tierSize(storage, BlockStorage.Tier.WARM)).isEqualTo(0);
+            assertThat(tierSize(storage, BlockStorage.Tier.COLD)).isEqualTo(0);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedBlocksMovedFirst() throws IOException {
+        BlockStorage storage = BlockStorage.builder()
+                .mode(StorageMode.TIERED)
+                .hotTierSize(4 * FileData.BLOCK_SIZE)
+                .warmTierSize(4 * FileData.BLOCK_SIZE)
+                .build();
+        try {
+            FileData data = FileData.newEmpty(storage);
+            data.asOutputStream().write(sequenceBytes(3 * FileData.BLOCK_SIZE));
+
+            // hot tier is not full yet, only clock is updated
+            long now = System.currentTimeMillis() + 1000;
+            storage.moveToLowerTiers(now);
+            assertThat(tierSize(storage, BlockStorage.Tier.HOT)).isEqualTo(3);
+
+            // block 0 is used, thus it's more recently used than blocks 1 & 2, and as recent as new block 3
+            data.read(0, new byte[1], 0, 1);
+            data.asOutputStream().write(sequenceBytes(FileData.BLOCK_SIZE));
+            storage.moveToLowerTiers(now + 1000);
+
+            assertThat(tierSize(storage, BlockStorage.Tier.HOT)).isEqualTo(3);
+            assertThat(data.block(0).currentBuffer().isDirect()).isFalse();
+            assertThat(data.block(3).currentBuffer().isDirect()).isFalse();
+            assertThat(data.block(1).currentBuffer().isDirect() || data.block(2).currentBuffer().isDirect()).isTrue();
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void optimisticBlockReadIsOnlyRecordedOnceValidated() throws IOException {
+        BlockStorage storage = BlockStorage.builder()
+                .mode(StorageMode.TIERED)
+                .hotTierSize(4 * FileData.BLOCK_SIZE)
+                .warmTierSize(4 * FileData.BLOCK_SIZE)
+                .build();
+        try {
+            FileData data = FileData.newEmpty(storage);
+            data.asOutputStream().write(sequenceBytes(FileData.BLOCK_SIZE));
+            Block block = data.block(0);
+            long written = block.lastAccess();
+
+            long now = System.currentTimeMillis() + 1000;
+            storage.moveToLowerTiers(now);
+            block.get(0, new byte[1], 0, 1, true);
+            assertThat(block.lastAccess()).isEqualTo(written);
+
+            block.promote();
+            assertThat(block.lastAccess()).isEqualTo(now);
+        } finally {
+            storage.close();
+        }
+    }
+
+    private static long tierSize(BlockStorage storage, BlockStorage.Tier tier) {
+        return storage.tierSize(tier) / FileData.BLOCK_SIZE;
+    }
+
+    @Test
+    public void truncateOrReleaseCopyDoesNotAlterOriginal() throws IOException {
+        byte[] bytes = sequenceBytes(FileData.BLOCK_SIZE * 2);
+        FileData data = FileData.fromData(bytes);
+
+        FileData truncated = FileData.copy(data);
+        truncated.truncate(1);
+        assertData(truncated).hasContent(new byte[]{0});
+
+        FileData released = FileData.copy(data);
+        released.release();
+        assertData(released).isEmpty();
+
+        assertData(data).hasContent(bytes);
+
+        // once original is released, copy keeps its content
+        FileData copy = FileData.copy(data);
+        data.release();
+        assertData(copy).hasContent(bytes);
+    }
+
+    @Test
+    public void deduplicateIdenticalFullBlocks() throws IOException {
+        BlockStorage storage = BlockStorage.builder().deduplication(true).build();
+        byte[] bytes = new byte[FileData.BLOCK_SIZE * 2 + 10];
+        new Random(42).nextBytes(bytes);
+
+        FileData first = FileData.newEmpty(storage);
+        first.asOutputStream().write(bytes);
+        assertThat(storage.physicalSize()).isEqualTo(3 * FileData.BLOCK_SIZE);
+
+        // full blocks are shared, last partial block is not
+        FileData second = FileData.newEmpty(storage);
+        second.asOutputStream().write(bytes);
+        assertThat(second.block(0)).isSameAs(first.block(0));
+        assertThat(second.block(1)).isSameAs(first.block(1));
+        assertThat(second.block(2)).isNotSameAs(first.block(2));
+        assertThat(storage.index().size()).isEqualTo(2);
+
+        assertThat(storage.logicalSize()).isEqualTo(2 * bytes.length);
+        assertThat(storage.physicalSize()).isEqualTo(4 * FileData.BLOCK_SIZE);
+
+        // modifying a shared block does not alter other file
+        second.truncate(FileData.BLOCK_SIZE + 1);
+        second.asOutputStream().write(new byte[]{42});
+        assertThat(second.block(1)).isNotSameAs(first.block(1));
+        assertData(first).hasContent(bytes);
+
+        byte[] expected = Arrays.copyOf(bytes, FileData.BLOCK_SIZE + 2);
+        expected[expected.length - 1] = 42;
+        assertData(second).hasContent(expected);
+
+        first.release();
+        second.release();
+        assertThat(storage.logicalSize()).isEqualTo(0);
+        assertThat(storage.physicalSize()).isEqualTo(0);
+        assertThat(storage.index().size()).isEqualTo(0);
+    }
+
+    @Test
+    public void noDeduplicationByDefault() throws IOException {
+        BlockStorage storage = BlockStorage.create(StorageMode.HEAP);
+        byte[] bytes = new byte[FileData.BLOCK_SIZE];
+        FileData first = FileData.newEmpty(storage);
+        first.asOutputStream().write(bytes);
+        FileData second = FileData.newEmpty(storage);
+        second.asOutputStream().write(bytes);
+
+        assertThat(second.block(0)).isNotSameAs(first.block(0));
+        assertThat(storage.index()).isNull();
+        assertThat(storage.physicalSize()).isEqualTo(2 * FileData.BLOCK_SIZE);
+    }
+
+    @Test
+    public void compressColdBlocks() throws IOException {
+        long delay = 60000;
+        BlockStorage storage = BlockStorage.builder().compressAfter(delay).build();
+        try {
+            byte[] bytes = sequenceBytes(FileData.BLOCK_SIZE * 2 + 10);
+            FileData data = FileData.newEmpty(storage);
+            data.asOutputStream().write(bytes);
+
+            // blocks are not compressed until they are cold
+            storage.compressColdBlocks(System.currentTimeMillis());
+            assertThat(storage.compressedBlocks()).isEqualTo(0);
+
+            storage.compressColdBlocks(System.currentTimeMillis() + delay);
+            assertThat(storage.compressedBlocks()).isEqualTo(3);
+            assertThat(data.block(0).isCompressed()).isTrue();
+            assertThat(storage.physicalSize()).isLessThan(FileData.BLOCK_SIZE);
+            assertThat(storage.compressionRatio()).isLessThan(0.1);
+
+            // content is decompressed when read
+            assertData(data).hasContent(bytes);
+            assertThat(data.block(0).isCompressed()).isFalse();
+            assertThat(storage.compressedBlocks()).isEqualTo(0);
+            assertThat(storage.physicalSize()).isEqualTo(3 * FileData.BLOCK_SIZE);
+
+            // compressed blocks can be released and modified
+            storage.compressColdBlocks(System.currentTimeMillis() + 3 * delay);
+            data.truncate(FileData.BLOCK_SIZE + 1);
+            data.asOutputStream().write(new byte[]{42});
+            byte[] expected = Arrays.copyOf(bytes, FileData.BLOCK_SIZE + 2);
+            expected[expected.length - 1] = 42;
+            assertData(data).hasContent(expected);
+
+            data.release();
+            assertThat(storage.compressedBlocks()).isEqualTo(0);
+            assertThat(storage.physicalSize()).isEqualTo(0);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void compressedOffHeapBlocksAreDecompressedToDirectBuffers() throws IOException {
+        long delay = 60000;
+        BlockStorage storage = BlockStorage.builder()
+                .mode(StorageMode.OFF_HEAP)
+                .compressAfter(delay)
+                .build();
+        try {
+            byte[] bytes = sequenceBytes(FileData.BLOCK_SIZE * 2);
+            FileData data = FileData.newEmpty(storage);
+            data.asOutputStream().write(bytes);
+            storage.compressColdBlocks(System.currentTimeMillis() + delay);
+            assertThat(storage.compressedBlocks()).isEqualTo(2);
+
+            assertData(data).hasContent(bytes);
+            assertThat(data.block(0).currentBuffer().isDirect()).isTrue();
+            assertThat(storage.compressedBlocks()).isEqualTo(0);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void scatteringReadOfCompressedBlocks() throws IOException {
+        long delay = 60000;
+        BlockStorage storage = BlockStorage.builder().compressAfter(delay).build();
+        try {
+            byte[] bytes = sequenceBytes(FileData.BLOCK_SIZE * 2);
+            FileData data = FileData.newEmpty(storage);
+            data.asOutputStream().write(bytes);
+            storage.compressColdBlocks(System.currentTimeMillis() + delay);
+            assertThat(data.block(1).isCompressed()).isTrue();
+
+            // blocks are not decompressed without lock, buffers are then read again with lock
+            ByteBuffer first = ByteBuffer.allocate(FileData.BLOCK_SIZE + 5);
+            ByteBuffer second = ByteBuffer.allocateDirect(FileData.BLOCK_SIZE);
+            assertThat(data.read(0, new ByteBuffer[]{first, second}, 0, 2)).isEqualTo(bytes.length);
+            assertThat(first.hasRemaining()).isFalse();
+            assertThat(second.position()).isEqualTo(FileData.BLOCK_SIZE - 5);
+            assertThat(data.block(1).isCompressed()).isFalse();
+
+            byte[] actual = new byte[bytes.length];
+            ((ByteBuffer) first.flip()).get(actual, 0, first.limit());
+            ((ByteBuffer) second.flip()).get(actual, first.limit(), second.limit());
+            assertThat(actual).isEqualTo(bytes);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void incompressibleBlocksAreNotCompressed() throws IOException {
+        long delay = 60000;
+        BlockStorage storage = BlockStorage.builder()
+                .mode(StorageMode.OFF_HEAP)
+                .compressAfter(delay)
+                .build();
+        try {
+            byte[] bytes = new byte[FileData.BLOCK_SIZE];
+            new Random(42).nextBytes(bytes);
+            FileData data = FileData.newEmpty(storage);
+            data.asOutputStream().write(bytes);
+
+            storage.compressColdBlocks(System.currentTimeMillis() + delay);
+            assertThat(storage.compressedBlocks()).isEqualTo(0);
+            assertThat(storage.compressionRatio()).isEqualTo(1.0);
+            assertData(data).hasContent(bytes);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void noCompressionByDefault() throws IOException {
+        BlockStorage storage = BlockStorage.create(StorageMode.HEAP);
+        FileData data = FileData.newEmpty(storage);
+        data.asOutputStream().write(new byte[FileData.BLOCK_SIZE]);
+
+        storage.compressColdBlocks(Long.MAX_VALUE);
+        assertThat(storage.compressedBlocks()).isEqualTo(0);
+        assertThat(data.block(0).isCompressed()).isFalse();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void negativeCompressionDelayNotAllowed() {
+        BlockStorage.builder().compressAfter(-1);
+    }
+
+    private static byte[] sequenceBytes(int size) {
+        byte[] result = new byte[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (byte) i;
+        }
+        return result;
+    }
+
     private static FileDataAssert assertData(FileData data) {
         return new FileDataAssert(data);
     }
@@ -105,13 +1384,15 @@ public class FileDataTest {
 
         public FileDataAssert hasContent(byte[] content) {
             ByteArrayInputStream expected = new ByteArrayInputStream(content);
+            // comparison closes stream, thus end of file is checked with another stream
             InputStream input = data.asInputStream();
-            assertThat(input).hasContentEqualTo(expected);
             try {
+                input.skip(content.length);
                 assertThat(input.read()).isLessThan(0);
             } catch (IOException e) {
                 fail(e.getMessage());
             }
+            assertThat(data.asInputStream()).hasContentEqualTo(expected);
             return this;
         }
 
@@ -0,0 +1,163 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FileLockTableTest {
+
+    @Test
+    public void sharedLocksOverlap() throws IOException {
+        FileLockTable table = new FileLockTable();
+        FileChannel first = newChannel();
+        FileChannel second = newChannel();
+        FileLock lock = table.tryLock(first, 0, 10, true);
+        assertThat(lock).isNotNull();
+        assertThat(lock.isShared()).isTrue();
+        assertThat(lock.acquiredBy()).isSameAs(first);
+        assertThat(table.tryLock(second, 5, 10, true)).isNotNull();
+        assertThat(table.size()).isEqualTo(2);
+
+        // exclusive lock conflicts with both shared locks
+        assertThat(table.tryLock(newChannel(), 9, 1, false)).isNull();
+    }
+
+    @Test
+    public void exclusiveLockConflicts() throws IOException {
+        FileLockTable table = new FileLockTable();
+        FileChannel first = newChannel();
+        FileChannel second = newChannel();
+        FileLock lock = table.tryLock(first, 10, 10, false);
+        assertThat(lock.isShared()).isFalse();
+        assertThat(table.tryLock(second, 0, 11, true)).isNull();
+        assertThat(table.tryLock(second, 19, 5, false)).isNull();
+
+        // adjacent ranges do not overlap
+        assertThat(table.tryLock(second, 0, 10, false)).isNotNull();
+        assertThat(table.tryLock(second, 20, 10, false)).isNotNull();
+
+        lock.release();
+        assertThat(lock.isValid()).isFalse();
+        assertThat(table.tryLock(second, 10, 10, false)).isNotNull();
+    }
+
+    @Test(expectedExceptions = OverlappingFileLockException.class)
+    public void overlappingLocksOfSameChannel() throws IOException {
+        FileLockTable table = new FileLockTable();
+        FileChannel channel = newChannel();
+        table.tryLock(channel, 0, 10, true);
+        table.tryLock(channel, 5, 10, true);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void negativePosition() {
+        new FileLockTable().tryLock(newChannel(), -1, 10, true);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rangeOverflow() {
+        new FileLockTable().tryLock(newChannel(), 1, Long.MAX_VALUE, true);
+    }
+
+    @Test
+    public void releaseAllLocksOfChannel() throws IOException {
+        FileLockTable table = new FileLockTable();
+        FileChannel first = newChannel();
+        FileLock lock = table.tryLock(first, 0, 10, false);
+        table.tryLock(first, 10, 10, false);
+        FileLock other = table.tryLock(newChannel(), 20, 10, false);
+
+        table.releaseAll(first);
+        assertThat(lock.isValid()).isFalse();
+        assertThat(other.isValid()).isTrue();
+        assertThat(table.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void lockWaitsForRelease() throws Exception {
+        final FileLockTable table = new FileLockTable();
+        FileLock lock = table.tryLock(newChannel(), 0, 10, false);
+        final FileChannel waiting = newChannel();
+        final AtomicReference<FileLock> acquired = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquired.set(table.lock(waiting, 5, 10, false));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                done.countDown();
+            }
+        });
+        thread.start();
+        assertThat(done.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+        lock.release();
+        assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(acquired.get().isValid()).isTrue();
+        assertThat(acquired.get().position()).isEqualTo(5);
+    }
+
+    @Test
+    public void interruptWaitingLock() throws Exception {
+        final FileLockTable table = new FileLockTable();
+        table.tryLock(newChannel(), 0, 10, false);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    table.lock(newChannel(), 0, 10, true);
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        thread.start();
+        thread.interrupt();
+        thread.join(10000);
+        assertThat(failure.get()).isInstanceOf(FileLockInterruptionException.class);
+    }
+
+    @Test
+    public void closeChannelOfWaitingLock() throws Exception {
+        final FileLockTable table = new FileLockTable();
+        table.tryLock(newChannel(), 0, 10, false);
+        final FileChannel waiting = newChannel();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    table.lock(waiting, 0, 10, true);
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        thread.start();
+        while (Thread.State.WAITING != thread.getState()) {
+            Thread.sleep(1);
+        }
+        waiting.close();
+        table.releaseAll(waiting);
+        thread.join(10000);
+        assertThat(failure.get()).isInstanceOf(AsynchronousCloseException.class);
+    }
+
+    private static FileChannel newChannel() {
+        return MemoryFileChannel.newChannel(FileData.newEmpty(), true, true, false);
+    }
+}
@@ -0,0 +1,288 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class MemoryAsynchronousFileChannelTest {
+
+    @Test
+    public void futuresAreAlreadyDone() throws Exception {
+        FileData data = FileData.newEmpty();
+        AsynchronousFileChannel c = newChannel(data, null);
+
+        Future<Integer> write = c.write(ByteBuffer.wrap(new byte[]{1, 2, 3}), 2);
+        assertThat(write.isDone()).isTrue();
+        assertThat(write.get()).isEqualTo(3);
+        assertThat(c.size()).isEqualTo(5);
+
+        ByteBuffer dst = ByteBuffer.allocate(5);
+        Future<Integer> read = c.read(dst, 0);
+        assertThat(read.isDone()).isTrue();
+        assertThat(read.get()).isEqualTo(5);
+        assertThat(dst.array()).isEqualTo(new byte[]{0, 0, 1, 2, 3});
+        assertThat(c.read(ByteBuffer.allocate(1), 5).get()).isEqualTo(-1);
+    }
+
+    @Test
+    public void handlerInvokedByCallingThread() throws IOException {
+        AsynchronousFileChannel c = newChannel(FileData.fromData(new byte[]{1, 2}), null);
+        final AtomicReference<Thread> thread = new AtomicReference<>();
+        final AtomicInteger result = new AtomicInteger();
+        c.read(ByteBuffer.allocate(2), 0, "attachment", new CompletionHandler<Integer, String>() {
+            @Override
+            public void completed(Integer read, String attachment) {
+                assertThat(attachment).isEqualTo("attachment");
+                result.set(read);
+                thread.set(Thread.currentThread());
+            }
+
+            @Override
+            public void failed(Throwable exc, String attachment) {
+                fail("unexpected failure", exc);
+            }
+        });
+        assertThat(thread.get()).isSameAs(Thread.currentThread());
+        assertThat(result.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void recursiveHandlersUseExecutor() throws Exception {
+        final int size = 100;
+        FileData data = FileData.fromData(new byte[size]);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final AsynchronousFileChannel c = newChannel(data, executor);
+            final CountDownLatch done = new CountDownLatch(1);
+            final AtomicInteger executorCalls = new AtomicInteger();
+            final Thread caller = Thread.currentThread();
+            // reads file one byte at a time, each read being started by previous read handler
+            c.read(ByteBuffer.allocate(1), 0, 0L, new CompletionHandler<Integer, Long>() {
+                @Override
+                public void completed(Integer read, Long position) {
+                    if (Thread.currentThread() != caller) {
+                        executorCalls.incrementAndGet();
+                    }
+                    if (read < 0) {
+                        done.countDown();
+                    } else {
+                        c.read(ByteBuffer.allocate(1), position + 1, position + 1, this);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable exc, Long position) {
+                    fail("unexpected failure", exc);
+                }
+            });
+            assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(executorCalls.get()).isGreaterThan(0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void failureOnClosedChannel() throws Exception {
+        AsynchronousFileChannel c = newChannel(FileData.newEmpty(), null);
+        c.close();
+        assertThat(c.isOpen()).isFalse();
+        try {
+            c.write(ByteBuffer.wrap(new byte[1]), 0).get();
+            fail("closed channel should fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(ClosedChannelException.class);
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        c.read(ByteBuffer.allocate(1), 0, null, new CompletionHandler<Integer, Object>() {
+            @Override
+            public void completed(Integer result, Object attachment) {
+                fail("closed channel should fail");
+            }
+
+            @Override
+            public void failed(Throwable exc, Object attachment) {
+                failure.set(exc);
+            }
+        });
+        assertThat(failure.get()).isInstanceOf(ClosedChannelException.class);
+    }
+
+    @Test
+    public void truncate() throws IOException {
+        AsynchronousFileChannel c = newChannel(FileData.fromData(new byte[]{1, 2, 3}), null);
+        assertThat(c.truncate(1)).isSameAs(c);
+        assertThat(c.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void lockWaitsForOtherChannel() throws Exception {
+        FileData data = FileData.newEmpty();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AsynchronousFileChannel first = newChannel(data, executor);
+            AsynchronousFileChannel second = newChannel(data, executor);
+
+            Future<FileLock> lock = first.lock();
+            assertThat(lock.isDone()).isTrue();
+            assertThat(lock.get().acquiredBy()).isSameAs(first);
+            assertThat(second.tryLock(0, 10, true)).isNull();
+
+            Future<FileLock> waiting = second.lock(0, 10, true);
+            assertThat(waiting.isDone()).isFalse();
+            lock.get().release();
+            assertThat(waiting.get(10, TimeUnit.SECONDS).isShared()).isTrue();
+
+            // locks are released when channel is closed
+            second.close();
+            assertThat(waiting.get().isValid()).isFalse();
+            assertThat(first.tryLock()).isNotNull();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void waitingLocksDoNotBlockExecutor() throws Exception {
+        FileData data = FileData.newEmpty();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AsynchronousFileChannel first = newChannel(data, executor);
+            AsynchronousFileChannel second = newChannel(data, executor);
+            FileLock lock = first.lock().get();
+
+            final CountDownLatch done = new CountDownLatch(1);
+            final AtomicReference<FileLock> acquired = new AtomicReference<>();
+            second.lock(null, new CompletionHandler<FileLock, Object>() {
+                @Override
+                public void completed(FileLock result, Object attachment) {
+                    acquired.set(result);
+                    done.countDown();
+                }
+
+                @Override
+                public void failed(Throwable exc, Object attachment) {
+                    fail("unexpected failure", exc);
+                }
+            });
+            Future<FileLock> waiting = second.lock(0, 10, true);
+            assertThat(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get(10, TimeUnit.SECONDS)).isNull();
+            assertThat(waiting.isDone()).isFalse();
+            assertThat(acquired.get()).isNull();
+
+            lock.release();
+            assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(acquired.get().acquiredBy()).isSameAs(second);
+            // lock overlaps lock acquired by same channel
+            try {
+                waiting.get(10, TimeUnit.SECONDS);
+                fail("overlapping lock of same channel should fail");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause()).isInstanceOf(OverlappingFileLockException.class);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void cancelWaitingLock() throws Exception {
+        FileData data = FileData.newEmpty();
+        AsynchronousFileChannel first = newChannel(data, null);
+        AsynchronousFileChannel second = newChannel(data, null);
+        FileLock lock = first.lock().get();
+
+        Future<FileLock> waiting = second.lock();
+        assertThat(waiting.cancel(false)).isTrue();
+        assertThat(data.locks().queued()).isEqualTo(0);
+
+        lock.release();
+        assertThat(first.tryLock()).isNotNull();
+    }
+
+    @Test
+    public void closeChannelWithWaitingLock() throws Exception {
+        FileData data = FileData.newEmpty();
+        AsynchronousFileChannel first = newChannel(data, null);
+        AsynchronousFileChannel second = newChannel(data, null);
+        first.lock();
+
+        Future<FileLock> waiting = second.lock();
+        second.close();
+        try {
+            waiting.get(10, TimeUnit.SECONDS);
+            fail("waiting lock should fail once channel is closed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(AsynchronousCloseException.class);
+        }
+    }
+
+    @Test
+    public void runtimeFailuresAreReportedToHandler() throws Exception {
+        AsynchronousFileChannel c = newChannel(FileData.newEmpty(), null);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        c.read(ByteBuffer.allocate(1), -1, null, new CompletionHandler<Integer, Object>() {
+            @Override
+            public void completed(Integer result, Object attachment) {
+                fail("negative position should fail");
+            }
+
+            @Override
+            public void failed(Throwable exc, Object attachment) {
+                failure.set(exc);
+            }
+        });
+        assertThat(failure.get()).isInstanceOf(IllegalArgumentException.class);
+        try {
+            c.write(ByteBuffer.allocate(1), -1).get();
+            fail("negative position should fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    @Test
+    public void lockHandlerInvokedByCallingThread() throws Exception {
+        AsynchronousFileChannel c = newChannel(FileData.newEmpty(), null);
+        final AtomicReference<Thread> thread = new AtomicReference<>();
+        c.lock("attachment", new CompletionHandler<FileLock, String>() {
+            @Override
+            public void completed(FileLock lock, String attachment) {
+                assertThat(lock.isValid()).isTrue();
+                thread.set(Thread.currentThread());
+            }
+
+            @Override
+            public void failed(Throwable exc, String attachment) {
+                fail("unexpected failure", exc);
+            }
+        });
+        assertThat(thread.get()).isSameAs(Thread.currentThread());
+    }
+
+    private static AsynchronousFileChannel newChannel(FileData data, ExecutorService executor) {
+        return MemoryAsynchronousFileChannel.newChannel(MemoryFileChannel.newChannel(data, true, true, false), executor);
+    }
+}
@@ -5,6 +5,7 @@ import org.testng.annotations.Test;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.NonReadableChannelException;
 import java.nio.channels.NonWritableChannelException;
 import java.security.SecureRandom;
@@ -13,6 +14,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static com.github.sylvainjuge.memoryfs.MemoryByteChannel.newReadChannel;
+import static com.github.sylvainjuge.memoryfs.MemoryByteChannel.newReadWriteChannel;
 import static com.github.sylvainjuge.memoryfs.MemoryByteChannel.newWriteChannel;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Fail.fail;
@@ -63,7 +65,7 @@ public class MemoryByteChannelTest {
     public void readClosed() throws IOException {
         MemoryByteChannel c = newReadChannel(FileData.newEmpty());
         c.close();
-        c.read(null);
+        c.read((ByteBuffer) null);
     }
 
     @Test(expectedExceptions = ClosedChannelException.class)
@@ -86,7 +88,7 @@ public class MemoryByteChannelTest {
 
     @Test(expectedExceptions = NonReadableChannelException.class)
     public void readInWriteChannel() throws IOException {
-        newWriteChannel(FileData.newEmpty(), false).read(null);
+        newWriteChannel(FileData.newEmpty(), false).read((ByteBuffer) null);
     }
 
     @Test
@@ -133,17 +135,38 @@ public class MemoryByteChannelTest {
     }
 
     @Test
-    public void writingWithoutAppendTruncates() throws IOException {
-        MemoryByteChannel c = newWriteChannel(zeroFileData(5), false);
-        assertThat(c.size()).isEqualTo(0);
+    public void appendChannelsNeverOverwriteEachOther() throws IOException {
+        FileData data = FileData.newEmpty();
+        MemoryByteChannel first = newWriteChannel(data, true);
+        MemoryByteChannel second = newWriteChannel(data, true);
+        assertThat(first.write(ByteBuffer.wrap(new byte[]{1, 1, 1, 1}))).isEqualTo(4);
+        assertThat(second.write(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{2, 2}), ByteBuffer.wrap(new byte[]{2, 2})}))
+                .isEqualTo(4);
+
+        // position is ignored, writes are always done at end of file
+        first.position(0);
+        first.write(ByteBuffer.wrap(new byte[]{3}));
+        assertThat(first.position()).isEqualTo(9);
+        readsExpected(newReadChannel(data), new byte[]{1, 1, 1, 1, 2, 2, 2, 2, 3});
+    }
+
+    @Test
+    public void writingWithoutAppendOverwritesInPlace() throws IOException {
+        FileData data = zeroFileData(5);
+        MemoryByteChannel c = newWriteChannel(data, false);
+        assertThat(c.size()).isEqualTo(5);
         assertThat(c.position()).isEqualTo(0);
+
+        c.write(ByteBuffer.wrap(new byte[]{1, 2}));
+        assertThat(c.size()).isEqualTo(5);
+        readsExpected(newReadChannel(data), new byte[]{1, 2, 0, 0, 0});
     }
 
-    @Test(enabled = false)
+    @Test
     public void writeInExistingData() throws IOException {
         FileData data = zeroFileData(3);
-        MemoryByteChannel write = newWriteChannel(data, true);
-        assertThat(write.position()).isEqualTo(3);
+        MemoryByteChannel write = newReadWriteChannel(data);
+        assertThat(write.position()).isEqualTo(0);
         assertThat(write.size()).isEqualTo(3);
 
         // rewrite the middle byte
@@ -159,9 +182,131 @@ public class MemoryByteChannelTest {
         write.position(2);
         write.write(ByteBuffer.wrap(new byte[]{2, 3}));
 
+        // read channel reads data as it was when opened
         read.position(0);
-        readsExpected(read, new byte[]{0, 1, 2, 3});
+        readsExpected(read, new byte[]{0, 1, 0});
+        readsExpected(newReadChannel(data), new byte[]{0, 1, 2, 3});
+
+    }
+
+    @Test
+    public void readWriteChannel() throws IOException {
+        FileData data = FileData.fromData(new byte[]{1, 2, 3, 4});
+        MemoryByteChannel c = newReadWriteChannel(data);
+        c.position(2);
+        assertThat(c.write(ByteBuffer.wrap(new byte[]{5}))).isEqualTo(1);
+
+        ByteBuffer read = ByteBuffer.allocate(2);
+        assertThat(c.read(read)).isEqualTo(1);
+        assertThat(read.get(0)).isEqualTo((byte) 4);
+        assertThat(c.read(read)).isEqualTo(-1);
+
+        c.position(0);
+        readsExpected(c, new byte[]{1, 2, 5, 4});
+    }
+
+    @Test
+    public void mapReadWrite() throws IOException {
+        FileData data = FileData.fromData(new byte[16]);
+        ByteBuffer map = newReadWriteChannel(data).map(FileChannel.MapMode.READ_WRITE, 0, 16);
+        map.asLongBuffer().put(1, 42L);
+        ByteBuffer read = ByteBuffer.allocate(16);
+        newReadChannel(data).read(read);
+        assertThat(read.getLong(8)).isEqualTo(42L);
+    }
+
+    @Test
+    public void mapReadOnlyInReadChannelAliasesFile() throws IOException {
+        FileData data = FileData.fromData(new byte[]{1, 2, 3, 4});
+        MemoryByteChannel read = newReadChannel(data);
+        ByteBuffer map = read.map(FileChannel.MapMode.READ_ONLY, 0, 4);
+        assertThat(map.get(0)).isEqualTo((byte) 1);
+
+        newWriteChannel(data, false).write(ByteBuffer.wrap(new byte[]{9}));
+        assertThat(map.get(0)).isEqualTo((byte) 9);
+        // channel itself still reads content as it was when opened
+        readsExpected(read, new byte[]{1, 2, 3, 4});
+    }
+
+    @Test
+    public void mapPrivateCopiesContent() throws IOException {
+        FileData data = FileData.fromData(new byte[]{1, 2, 3});
+        ByteBuffer map = newReadChannel(data).map(FileChannel.MapMode.PRIVATE, 1, 2);
+        assertThat(map.remaining()).isEqualTo(2);
+        map.put(0, (byte) 4);
+        assertThat(data).isEqualTo(FileData.fromData(new byte[]{1, 2, 3}));
+    }
+
+    @Test(expectedExceptions = NonWritableChannelException.class)
+    public void mapReadWriteInReadChannel() throws IOException {
+        newReadChannel(FileData.fromData(new byte[1])).map(FileChannel.MapMode.READ_WRITE, 0, 1);
+    }
+
+    @Test
+    public void gatheringWrite() throws IOException {
+        FileData data = FileData.newEmpty();
+        MemoryByteChannel c = newWriteChannel(data, false);
+        byte[] body = randomBytes(2 * FileData.BLOCK_SIZE);
+        ByteBuffer[] srcs = {ByteBuffer.wrap(new byte[]{1, 2}), ByteBuffer.allocate(0), ByteBuffer.wrap(body)};
+        assertThat(c.write(srcs)).isEqualTo(2 + body.length);
+        assertThat(c.position()).isEqualTo(2 + body.length);
+        assertThat(srcs[2].hasRemaining()).isFalse();
+
+        byte[] expected = new byte[2 + body.length];
+        expected[0] = 1;
+        expected[1] = 2;
+        System.arraycopy(body, 0, expected, 2, body.length);
+        assertThat(data).isEqualTo(FileData.fromData(expected));
+    }
+
+    @Test
+    public void scatteringRead() throws IOException {
+        MemoryByteChannel c = newReadChannel(FileData.fromData(new byte[]{1, 2, 3, 4, 5}));
+        ByteBuffer[] dsts = {ByteBuffer.allocate(2), ByteBuffer.allocate(2), ByteBuffer.allocate(2)};
+        assertThat(c.read(dsts, 1, 2)).isEqualTo(4);
+        assertThat(dsts[0].position()).isEqualTo(0);
+        assertThat(dsts[1].array()).isEqualTo(new byte[]{1, 2});
+        assertThat(dsts[2].array()).isEqualTo(new byte[]{3, 4});
+
+        assertThat(c.read(dsts)).isEqualTo(1);
+        assertThat(dsts[0].array()).isEqualTo(new byte[]{5, 0});
+        assertThat(c.read(dsts)).isEqualTo(-1);
+    }
 
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void gatheringWriteOutOfBounds() throws IOException {
+        newWriteChannel(FileData.newEmpty(), false).write(new ByteBuffer[1], 1, 1);
+    }
+
+    @Test
+    public void readChannelReadsSnapshot() throws IOException {
+        byte[] bytes = randomBytes(3 * FileData.BLOCK_SIZE);
+        BlockStorage storage = BlockStorage.create(StorageMode.HEAP);
+        FileData data = FileData.newEmpty(storage);
+        data.asOutputStream().write(bytes);
+        MemoryByteChannel read = newReadChannel(data);
+
+        // writers are not blocked by readers, and only copy modified blocks
+        MemoryByteChannel write = newReadWriteChannel(data);
+        write.position(10);
+        write.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        write.truncate(FileData.BLOCK_SIZE);
+        assertThat(storage.logicalSize()).isEqualTo(FileData.BLOCK_SIZE);
+
+        assertThat(read.size()).isEqualTo(bytes.length);
+        readsExpected(read, bytes);
+
+        // snapshot storage is released on close
+        read.close();
+        assertThat(storage.physicalSize()).isEqualTo(FileData.BLOCK_SIZE);
+    }
+
+    @Test
+    public void snapshotOfInlineData() throws IOException {
+        FileData data = FileData.fromData(new byte[]{1, 2, 3});
+        MemoryByteChannel read = newReadChannel(data);
+        newWriteChannel(data, false).write(ByteBuffer.wrap(new byte[]{4}));
+        readsExpected(read, new byte[]{1, 2, 3});
     }
 
     @Test
@@ -241,6 +386,19 @@ public class MemoryByteChannelTest {
         c.position(1);
     }
 
+    @Test
+    public void writeAfterEndLeavesHole() throws IOException {
+        FileData data = FileData.newEmpty();
+        MemoryByteChannel c = newWriteChannel(data, false);
+        assertThat(c.position(10).position()).isEqualTo(10);
+        assertThat(c.size()).isEqualTo(0);
+
+        assertThat(c.write(ByteBuffer.wrap(new byte[]{1, 2}))).isEqualTo(2);
+        assertThat(c.position()).isEqualTo(12);
+        assertThat(c.size()).isEqualTo(12);
+        assertThat(data).isEqualTo(FileData.fromData(new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 2}));
+    }
+
     @Test(expectedExceptions = ClosedChannelException.class)
     public void setPositionOnClosedChannel() throws IOException {
         MemoryByteChannel c = newReadChannel(zeroFileData(1));
@@ -249,6 +407,20 @@ public class MemoryByteChannelTest {
         c.position(0);
     }
 
+    @Test(expectedExceptions = ClosedChannelException.class)
+    public void sizeOnClosedChannel() throws IOException {
+        MemoryByteChannel c = newReadChannel(zeroFileData(1));
+        c.close();
+        c.size();
+    }
+
+    @Test(expectedExceptions = ClosedChannelException.class)
+    public void getPositionOnClosedChannel() throws IOException {
+        MemoryByteChannel c = newWriteChannel(zeroFileData(1), false);
+        c.close();
+        c.position();
+    }
+
     @Test(expectedExceptions = IllegalArgumentException.class)
     public void truncateNegative() throws IOException {
         newWriteChannel(randomFileData(1), false).truncate(-1);
@@ -265,6 +437,27 @@ public class MemoryByteChannelTest {
         assertThat(c.position()).isEqualTo(1);
     }
 
+    @Test
+    public void fileLargerThanTwoGigabytes() throws IOException {
+        FileData data = FileData.newEmpty();
+        MemoryByteChannel c = newWriteChannel(data, false);
+        long position = 5L * 1024 * 1024 * 1024;
+        c.position(position);
+        c.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        assertThat(c.size()).isEqualTo(position + 3);
+
+        c.truncate(position + 2);
+        assertThat(c.size()).isEqualTo(position + 2);
+        assertThat(c.position()).isEqualTo(position + 2);
+
+        MemoryByteChannel read = newReadChannel(data);
+        read.position(position - 1);
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        assertThat(read.read(buffer)).isEqualTo(3);
+        assertThat(buffer.array()).isEqualTo(new byte[]{0, 1, 2, 0});
+        assertThat(read.position()).isEqualTo(position + 2);
+    }
+
     @Test
     public void truncateToGivenSize() throws IOException {
         MemoryByteChannel c = newWriteChannel(zeroFileData(10), true);
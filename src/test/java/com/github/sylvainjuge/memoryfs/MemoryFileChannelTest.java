@@ -0,0 +1,262 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.util.Arrays;
+
+import static com.github.sylvainjuge.memoryfs.MemoryFileChannel.newChannel;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MemoryFileChannelTest {
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void buildNullFileData() {
+        newChannel(null, true, false, false);
+    }
+
+    @Test
+    public void closeTwiceAllowed() throws IOException {
+        FileChannel c = newChannel(FileData.newEmpty(), true, false, false);
+        assertThat(c.isOpen()).isTrue();
+        c.close();
+        c.close();
+        assertThat(c.isOpen()).isFalse();
+    }
+
+    @Test(expectedExceptions = ClosedChannelException.class)
+    public void readClosed() throws IOException {
+        FileChannel c = newChannel(FileData.newEmpty(), true, false, false);
+        c.close();
+        c.read(ByteBuffer.allocate(1));
+    }
+
+    @Test(expectedExceptions = NonWritableChannelException.class)
+    public void writeInReadChannel() throws IOException {
+        newChannel(FileData.newEmpty(), true, false, false).write(ByteBuffer.wrap(new byte[1]));
+    }
+
+    @Test(expectedExceptions = NonReadableChannelException.class)
+    public void readInWriteChannel() throws IOException {
+        newChannel(FileData.newEmpty(), false, true, false).read(ByteBuffer.allocate(1));
+    }
+
+    @Test
+    public void readAndWriteOverwritesData() throws IOException {
+        FileData data = FileData.fromData(new byte[]{1, 2, 3, 4, 5});
+        FileChannel c = newChannel(data, true, true, false);
+        assertThat(c.write(ByteBuffer.wrap(new byte[]{6, 7}))).isEqualTo(2);
+        assertThat(c.position()).isEqualTo(2);
+        assertThat(c.size()).isEqualTo(5);
+
+        ByteBuffer read = ByteBuffer.allocate(3);
+        assertThat(c.read(read)).isEqualTo(3);
+        assertThat(read.array()).isEqualTo(new byte[]{3, 4, 5});
+        assertThat(c.read(ByteBuffer.allocate(1))).isEqualTo(-1);
+
+        assertThat(data).isEqualTo(FileData.fromData(new byte[]{6, 7, 3, 4, 5}));
+    }
+
+    @Test
+    public void positionalReadAndWrite() throws IOException {
+        FileData data = FileData.fromData(new byte[]{1, 2, 3});
+        FileChannel c = newChannel(data, true, true, false);
+
+        assertThat(c.write(ByteBuffer.wrap(new byte[]{4, 5}), 2)).isEqualTo(2);
+        // writing after end of file leaves a hole
+        assertThat(c.write(ByteBuffer.wrap(new byte[]{6}), 6)).isEqualTo(1);
+        assertThat(c.position()).isEqualTo(0);
+
+        ByteBuffer read = ByteBuffer.allocate(10);
+        assertThat(c.read(read, 1)).isEqualTo(6);
+        assertThat(c.read(ByteBuffer.allocate(1), 7)).isEqualTo(-1);
+        assertThat(c.position()).isEqualTo(0);
+        assertThat(data).isEqualTo(FileData.fromData(new byte[]{1, 2, 4, 5, 0, 0, 6}));
+    }
+
+    @Test
+    public void appendAlwaysWritesAtEnd() throws IOException {
+        FileData data = FileData.fromData(new byte[]{1, 2});
+        FileChannel c = newChannel(data, false, true, true);
+        assertThat(c.position()).isEqualTo(2);
+        c.position(0);
+        c.write(ByteBuffer.wrap(new byte[]{3}));
+        assertThat(c.position()).isEqualTo(3);
+        assertThat(data).isEqualTo(FileData.fromData(new byte[]{1, 2, 3}));
+    }
+
+    @Test
+    public void appendChannelsNeverOverwriteEachOther() throws IOException {
+        FileData data = FileData.newEmpty();
+        FileChannel first = newChannel(data, false, true, true);
+        FileChannel second = newChannel(data, false, true, true);
+        // both channels know end of file before writing
+        assertThat(first.position()).isEqualTo(second.position());
+
+        first.write(ByteBuffer.wrap(new byte[]{1, 1}));
+        second.write(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{2}), ByteBuffer.wrap(new byte[]{2})});
+        FileChannel src = newChannel(FileData.fromData(new byte[]{3, 3}), true, false, false);
+        assertThat(src.transferTo(0, 2, first)).isEqualTo(2);
+        assertThat(data).isEqualTo(FileData.fromData(new byte[]{1, 1, 2, 2, 3, 3}));
+    }
+
+    @Test
+    public void scatteringReadAndGatheringWrite() throws IOException {
+        FileData data = FileData.newEmpty();
+        FileChannel c = newChannel(data, true, true, false);
+        ByteBuffer[] srcs = {ByteBuffer.wrap(new byte[]{1, 2}), ByteBuffer.wrap(new byte[0]), ByteBuffer.wrap(new byte[]{3})};
+        assertThat(c.write(srcs)).isEqualTo(3);
+
+        c.position(0);
+        ByteBuffer[] dsts = {ByteBuffer.allocate(1), ByteBuffer.allocate(4)};
+        assertThat(c.read(dsts)).isEqualTo(3);
+        assertThat(dsts[0].array()).isEqualTo(new byte[]{1});
+        assertThat(dsts[1].array()).isEqualTo(new byte[]{2, 3, 0, 0});
+        assertThat(c.read(dsts)).isEqualTo(-1);
+    }
+
+    @Test
+    public void truncateMovesPosition() throws IOException {
+        FileData data = FileData.fromData(new byte[]{1, 2, 3, 4});
+        FileChannel c = newChannel(data, true, true, false);
+        c.position(3);
+        assertThat(c.truncate(2)).isSameAs(c);
+        assertThat(c.size()).isEqualTo(2);
+        assertThat(c.position()).isEqualTo(2);
+
+        // larger size is ignored
+        c.truncate(10);
+        assertThat(c.size()).isEqualTo(2);
+    }
+
+    @Test(expectedExceptions = NonWritableChannelException.class)
+    public void truncateReadOnly() throws IOException {
+        newChannel(FileData.newEmpty(), true, false, false).truncate(0);
+    }
+
+    @Test
+    public void forceDoesNothing() throws IOException {
+        newChannel(FileData.newEmpty(), true, false, false).force(true);
+    }
+
+    @Test
+    public void transferTo() throws IOException {
+        byte[] bytes = new byte[3 * FileData.BLOCK_SIZE];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        FileChannel c = newChannel(FileData.fromData(bytes), true, false, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertThat(c.transferTo(10, bytes.length, Channels.newChannel(out))).isEqualTo(bytes.length - 10);
+        assertThat(out.toByteArray()).isEqualTo(Arrays.copyOfRange(bytes, 10, bytes.length));
+        assertThat(c.position()).isEqualTo(0);
+
+        assertThat(c.transferTo(bytes.length, 10, Channels.newChannel(out))).isEqualTo(0);
+    }
+
+    @Test
+    public void transferFrom() throws IOException {
+        FileData source = FileData.fromData(new byte[]{1, 2, 3, 4});
+        FileData data = FileData.fromData(new byte[]{5, 6});
+        FileChannel c = newChannel(data, false, true, false);
+
+        FileChannel src = newChannel(source, true, false, false);
+        assertThat(c.transferFrom(src, 1, 3)).isEqualTo(3);
+        assertThat(src.position()).isEqualTo(3);
+        assertThat(data).isEqualTo(FileData.fromData(new byte[]{5, 1, 2, 3}));
+
+        // nothing transferred after end of file
+        assertThat(c.transferFrom(src, 5, 1)).isEqualTo(0);
+        assertThat(data.size()).isEqualTo(4);
+    }
+
+    @Test
+    public void transferBetweenMemoryChannelsSharesBlocks() throws IOException {
+        byte[] bytes = new byte[2 * FileData.BLOCK_SIZE];
+        Arrays.fill(bytes, (byte) 1);
+        FileData source = FileData.fromData(bytes);
+        FileData data = FileData.newEmpty();
+        FileChannel c = newChannel(data, true, true, false);
+
+        FileChannel src = newChannel(source, true, false, false);
+        assertThat(src.transferTo(0, bytes.length, c)).isEqualTo(bytes.length);
+        assertThat(c.position()).isEqualTo(bytes.length);
+        assertThat(src.position()).isEqualTo(0);
+        assertThat(data.block(0)).isSameAs(source.block(0));
+        assertThat(data.block(1)).isSameAs(source.block(1));
+
+        FileData other = FileData.newEmpty();
+        assertThat(newChannel(other, false, true, false).transferFrom(c, 0, bytes.length)).isEqualTo(0);
+        c.position(0);
+        assertThat(newChannel(other, false, true, false).transferFrom(c, 0, bytes.length)).isEqualTo(bytes.length);
+        assertThat(other.block(1)).isSameAs(source.block(1));
+        assertThat(other).isEqualTo(source);
+    }
+
+    @Test
+    public void byteChannelTransfer() throws IOException {
+        byte[] bytes = new byte[]{1, 2, 3};
+        MemoryByteChannel read = MemoryByteChannel.newReadChannel(FileData.fromData(bytes));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(read.transferTo(1, 10, Channels.newChannel(out))).isEqualTo(2);
+        assertThat(out.toByteArray()).isEqualTo(new byte[]{2, 3});
+
+        FileData data = FileData.newEmpty();
+        MemoryByteChannel write = MemoryByteChannel.newWriteChannel(data, false);
+        assertThat(write.transferFrom(read, 0, 10)).isEqualTo(3);
+        assertThat(data).isEqualTo(FileData.fromData(bytes));
+    }
+
+    @Test
+    public void lockFileData() throws IOException {
+        FileData data = FileData.newEmpty();
+        FileChannel first = newChannel(data, true, true, false);
+        FileChannel second = newChannel(data, true, true, false);
+
+        FileLock lock = first.tryLock();
+        assertThat(lock.isValid()).isTrue();
+        assertThat(lock.size()).isEqualTo(Long.MAX_VALUE);
+        assertThat(second.tryLock(0, 1, true)).isNull();
+
+        // locks are released when channel is closed
+        first.close();
+        assertThat(lock.isValid()).isFalse();
+        assertThat(second.lock(0, 1, true)).isNotNull();
+
+        // other files are not locked
+        assertThat(newChannel(FileData.newEmpty(), true, true, false).tryLock()).isNotNull();
+    }
+
+    @Test(expectedExceptions = NonWritableChannelException.class)
+    public void exclusiveLockRequiresWrite() throws IOException {
+        newChannel(FileData.newEmpty(), true, false, false).tryLock(0, 1, false);
+    }
+
+    @Test(expectedExceptions = NonReadableChannelException.class)
+    public void sharedLockRequiresRead() throws IOException {
+        newChannel(FileData.newEmpty(), false, true, false).lock(0, 1, true);
+    }
+
+    @Test(expectedExceptions = ClosedChannelException.class)
+    public void lockClosed() throws IOException {
+        FileChannel c = newChannel(FileData.newEmpty(), true, true, false);
+        FileLock lock = c.lock();
+        c.close();
+        lock.release();
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void mapNotSupported() throws IOException {
+        newChannel(FileData.newEmpty(), true, false, false).map(FileChannel.MapMode.READ_ONLY, 0, 0);
+    }
+
+}
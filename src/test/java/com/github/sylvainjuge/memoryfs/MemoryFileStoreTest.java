@@ -14,9 +14,9 @@ public class MemoryFileStoreTest {
         MemoryFileStore store = MemoryFileStore.builder().build();
         assertThat(store.name()).isEqualTo("");
         assertThat(store.type()).isEqualTo("memory");
-        assertThat(store.getTotalSpace()).isEqualTo(0);
-        assertThat(store.getUnallocatedSpace()).isEqualTo(0);
-        assertThat(store.getUsableSpace()).isEqualTo(0);
+        assertThat(store.getTotalSpace()).isEqualTo(Long.MAX_VALUE);
+        assertThat(store.getUnallocatedSpace()).isEqualTo(Long.MAX_VALUE);
+        assertThat(store.getUsableSpace()).isEqualTo(Long.MAX_VALUE);
         assertThat(store.isReadOnly()).isFalse();
     }
 
@@ -44,4 +44,104 @@ public class MemoryFileStoreTest {
         assertThat(store.getUnallocatedSpace()).isEqualTo(100);
     }
 
+    @Test
+    public void unlimitedStoreIsNeverFull() throws IOException {
+        BlockStorage storage = BlockStorage.create(StorageMode.HEAP);
+        MemoryFileStore store = MemoryFileStore.builder()
+                .storage(storage)
+                .build();
+        FileData.newEmpty(storage).asOutputStream().write(new byte[10]);
+        assertThat(store.getUsableSpace()).isEqualTo(Long.MAX_VALUE - 10);
+        assertThat(store.getUnallocatedSpace()).isEqualTo(Long.MAX_VALUE - 10);
+    }
+
+    @Test
+    public void logicalAndPhysicalBytes() throws IOException {
+        BlockStorage storage = BlockStorage.builder().deduplication(true).build();
+        MemoryFileStore store = MemoryFileStore.builder()
+                .storage(storage)
+                .build();
+        assertThat(store.getAttribute(MemoryFileStore.LOGICAL_BYTES)).isEqualTo(0L);
+        assertThat(store.getAttribute(MemoryFileStore.PHYSICAL_BYTES)).isEqualTo(0L);
+
+        byte[] bytes = new byte[FileData.BLOCK_SIZE];
+        FileData.newEmpty(storage).asOutputStream().write(bytes);
+        FileData.newEmpty(storage).asOutputStream().write(bytes);
+
+        assertThat(store.getAttribute(MemoryFileStore.LOGICAL_BYTES)).isEqualTo(2L * FileData.BLOCK_SIZE);
+        assertThat(store.getAttribute("memory:" + MemoryFileStore.PHYSICAL_BYTES)).isEqualTo((long) FileData.BLOCK_SIZE);
+    }
+
+    @Test
+    public void compressionStatistics() throws IOException {
+        BlockStorage storage = BlockStorage.builder().compressAfter(60000).build();
+        try {
+            MemoryFileStore store = MemoryFileStore.builder()
+                    .storage(storage)
+                    .build();
+            assertThat(store.getAttribute(MemoryFileStore.COMPRESSED_BLOCKS)).isEqualTo(0L);
+            assertThat(store.getAttribute(MemoryFileStore.COMPRESSION_RATIO)).isEqualTo(1.0);
+
+            FileData data = FileData.newEmpty(storage);
+            data.asOutputStream().write(new byte[FileData.BLOCK_SIZE]);
+            storage.compressColdBlocks(System.currentTimeMillis() + 60000);
+
+            assertThat(store.getAttribute(MemoryFileStore.COMPRESSED_BLOCKS)).isEqualTo(1L);
+            assertThat((Double) store.getAttribute(MemoryFileStore.COMPRESSION_RATIO)).isLessThan(0.1);
+            assertThat((Long) store.getAttribute(MemoryFileStore.COMPRESSION_TIME)).isGreaterThanOrEqualTo(0L);
+            assertThat((Long) store.getAttribute(MemoryFileStore.DECOMPRESSION_TIME)).isEqualTo(0L);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void tierStatistics() throws IOException {
+        BlockStorage storage = BlockStorage.builder()
+                .mode(StorageMode.TIERED)
+                .hotTierSize(FileData.BLOCK_SIZE)
+                .warmTierSize(FileData.BLOCK_SIZE)
+                .build();
+        try {
+            MemoryFileStore store = MemoryFileStore.builder()
+                    .storage(storage)
+                    .build();
+            FileData.newEmpty(storage).asOutputStream().write(new byte[3 * FileData.BLOCK_SIZE]);
+
+            long hot = (Long) store.getAttribute(MemoryFileStore.HOT_TIER_BYTES);
+            long warm = (Long) store.getAttribute(MemoryFileStore.WARM_TIER_BYTES);
+            long cold = (Long) store.getAttribute(MemoryFileStore.COLD_TIER_BYTES);
+            assertThat(hot).isLessThanOrEqualTo(FileData.BLOCK_SIZE);
+            assertThat(warm).isLessThanOrEqualTo(FileData.BLOCK_SIZE);
+            assertThat(hot + warm + cold).isEqualTo(3L * FileData.BLOCK_SIZE);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void heapStorageIsHotTier() throws IOException {
+        BlockStorage storage = BlockStorage.create(StorageMode.HEAP);
+        MemoryFileStore store = MemoryFileStore.builder()
+                .storage(storage)
+                .build();
+        FileData.newEmpty(storage).asOutputStream().write(new byte[FileData.BLOCK_SIZE]);
+        assertThat(store.getAttribute(MemoryFileStore.HOT_TIER_BYTES)).isEqualTo((long) FileData.BLOCK_SIZE);
+        assertThat(store.getAttribute(MemoryFileStore.WARM_TIER_BYTES)).isEqualTo(0L);
+        assertThat(store.getAttribute(MemoryFileStore.COLD_TIER_BYTES)).isEqualTo(0L);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void capacityMustMatchStorageCapacity() {
+        MemoryFileStore.builder()
+                .capacity(100)
+                .storage(BlockStorage.builder().capacity(200).build())
+                .build();
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void unsupportedAttribute() throws IOException {
+        MemoryFileStore.builder().build().getAttribute("dummy");
+    }
+
 }
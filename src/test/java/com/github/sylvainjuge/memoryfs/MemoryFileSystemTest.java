@@ -3,15 +3,22 @@ package com.github.sylvainjuge.memoryfs;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static java.nio.file.Files.*;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
@@ -112,6 +119,360 @@ public class MemoryFileSystemTest {
         assertThat(provider.registeredFileSystems()).isEmpty();
     }
 
+    @Test
+    public void heapStorageByDefault() {
+        assertThat(newMemoryFs().getStorage().mode()).isEqualTo(StorageMode.HEAP);
+    }
+
+    @Test
+    public void buildWithOffHeapStorage() throws IOException {
+        MemoryFileSystem fs = MemoryFileSystem
+                .builder(newProvider())
+                .storage(StorageMode.OFF_HEAP)
+                .build();
+        assertThat(fs.getStorage().mode()).isEqualTo(StorageMode.OFF_HEAP);
+
+        Path file = fs.getPath("/file");
+        byte[] data = new byte[]{1, 2, 3};
+        try (SeekableByteChannel channel = newByteChannel(file, WRITE, CREATE_NEW)) {
+            channel.write(ByteBuffer.wrap(data));
+        }
+        byte[] read = new byte[data.length];
+        try (SeekableByteChannel channel = newByteChannel(file, READ)) {
+            assertThat(channel.read(ByteBuffer.wrap(read))).isEqualTo(data.length);
+        }
+        assertThat(read).isEqualTo(data);
+    }
+
+    @Test
+    public void buildThroughUriWithStorageMode() throws IOException {
+        Map<String, Object> env = new HashMap<>();
+        env.put(MemoryFileSystem.ENV_STORAGE, "off_heap");
+        MemoryFileSystem fs = (MemoryFileSystem) newProvider().newFileSystem(URI.create("memory:/"), env);
+        assertThat(fs.getStorage().mode()).isEqualTo(StorageMode.OFF_HEAP);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void buildThroughUriWithInvalidStorageMode() throws IOException {
+        Map<String, Object> env = new HashMap<>();
+        env.put(MemoryFileSystem.ENV_STORAGE, "dummy");
+        newProvider().newFileSystem(URI.create("memory:/"), env);
+    }
+
+    @Test
+    public void buildThroughUriWithCapacity() throws IOException {
+        Map<String, Object> env = new HashMap<>();
+        env.put(MemoryFileSystem.ENV_CAPACITY, "100");
+        try (FileSystem fs = newProvider().newFileSystem(URI.create("memory:/"), env)) {
+            FileStore store = fs.getFileStores().iterator().next();
+            assertThat(store.getTotalSpace()).isEqualTo(100);
+            try {
+                newByteChannel(fs.getPath("/file"), WRITE, CREATE_NEW).write(ByteBuffer.wrap(new byte[101]));
+                fail("writing more than capacity should fail");
+            } catch (FileSystemException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void buildThroughUriWithSpillThreshold() throws IOException {
+        Map<String, Object> env = new HashMap<>();
+        env.put(MemoryFileSystem.ENV_SPILL_THRESHOLD, "10");
+        try (MemoryFileSystem fs = (MemoryFileSystem) newProvider().newFileSystem(URI.create("memory:/"), env)) {
+            assertThat(fs.getStorage().shouldSpill(10)).isFalse();
+            assertThat(fs.getStorage().shouldSpill(11)).isTrue();
+
+            Path file = fs.getPath("/file");
+            newByteChannel(file, WRITE, CREATE_NEW).write(ByteBuffer.wrap(new byte[20]));
+            assertThat(fs.findEntry(file).getData().isSpilled()).isTrue();
+        }
+    }
+
+    @Test
+    public void readSpilledInputStreamAfterClose() throws IOException {
+        Map<String, Object> env = new HashMap<>();
+        env.put(MemoryFileSystem.ENV_SPILL_THRESHOLD, "8192");
+        MemoryFileSystem fs = (MemoryFileSystem) newProvider().newFileSystem(URI.create("memory:/"), env);
+        Path file = fs.getPath("/file");
+        newByteChannel(file, WRITE, CREATE_NEW).write(ByteBuffer.wrap(new byte[1024 * 1024]));
+        InputStream in = newInputStream(file);
+        fs.close();
+        try {
+            in.read(new byte[FileData.BLOCK_SIZE]);
+            fail("reading after file system is closed should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        in.close();
+    }
+
+    @Test
+    public void readTieredChannelAfterClose() throws IOException {
+        Map<String, Object> env = new HashMap<>();
+        env.put(MemoryFileSystem.ENV_STORAGE, "tiered");
+        env.put(MemoryFileSystem.ENV_HOT_TIER_SIZE, "0");
+        env.put(MemoryFileSystem.ENV_WARM_TIER_SIZE, "0");
+        MemoryFileSystem fs = (MemoryFileSystem) newProvider().newFileSystem(URI.create("memory:/"), env);
+        Path file = fs.getPath("/file");
+        newByteChannel(file, WRITE, CREATE_NEW).write(ByteBuffer.wrap(new byte[4 * FileData.BLOCK_SIZE]));
+        SeekableByteChannel channel = newByteChannel(file, READ);
+        fs.close();
+        try {
+            channel.read(ByteBuffer.allocateDirect(FileData.BLOCK_SIZE));
+            fail("reading after file system is closed should fail");
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+        channel.close();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void negativeSpillThresholdNotAllowed() {
+        MemoryFileSystem
+                .builder(newProvider())
+                .spillThreshold(-1);
+    }
+
+    @Test
+    public void buildThroughUriWithDeduplication() throws IOException {
+        Map<String, Object> env = new HashMap<>();
+        env.put(MemoryFileSystem.ENV_DEDUPLICATION, "true");
+        try (MemoryFileSystem fs = (MemoryFileSystem) newProvider().newFileSystem(URI.create("memory:/"), env)) {
+            assertThat(fs.getStorage().index()).isNotNull();
+
+            byte[] data = new byte[FileData.BLOCK_SIZE];
+            newByteChannel(fs.getPath("/a"), WRITE, CREATE_NEW).write(ByteBuffer.wrap(data));
+            newByteChannel(fs.getPath("/b"), WRITE, CREATE_NEW).write(ByteBuffer.wrap(data));
+
+            FileStore store = fs.getFileStores().iterator().next();
+            assertThat(store.getAttribute(MemoryFileStore.LOGICAL_BYTES)).isEqualTo(2L * data.length);
+            assertThat(store.getAttribute(MemoryFileStore.PHYSICAL_BYTES)).isEqualTo((long) data.length);
+        }
+    }
+
+    @Test
+    public void buildThroughUriWithCompression() throws IOException {
+        Map<String, Object> env = new HashMap<>();
+        env.put(MemoryFileSystem.ENV_COMPRESS_AFTER, "60000");
+        try (MemoryFileSystem fs = (MemoryFileSystem) newProvider().newFileSystem(URI.create("memory:/"), env)) {
+            byte[] data = new byte[FileData.BLOCK_SIZE];
+            Path file = fs.getPath("/a");
+            newByteChannel(file, WRITE, CREATE_NEW).write(ByteBuffer.wrap(data));
+
+            fs.getStorage().compressColdBlocks(System.currentTimeMillis() + 60000);
+
+            FileStore store = fs.getFileStores().iterator().next();
+            assertThat(store.getAttribute(MemoryFileStore.COMPRESSED_BLOCKS)).isEqualTo(1L);
+            assertThat((Long) store.getAttribute(MemoryFileStore.PHYSICAL_BYTES)).isLessThan((long) data.length);
+            ByteBuffer read = ByteBuffer.allocate(data.length);
+            newByteChannel(file, READ).read(read);
+            assertThat(read.array()).isEqualTo(data);
+            assertThat(store.getAttribute(MemoryFileStore.COMPRESSED_BLOCKS)).isEqualTo(0L);
+        }
+    }
+
+    @Test
+    public void openFileChannel() throws IOException {
+        try (MemoryFileSystem fs = newMemoryFs()) {
+            Path file = fs.getPath("/a");
+            try (FileChannel channel = FileChannel.open(file, READ, WRITE, CREATE_NEW)) {
+                channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+                channel.write(ByteBuffer.wrap(new byte[]{5}), 1);
+                ByteBuffer read = ByteBuffer.allocate(4);
+                assertThat(channel.read(read, 0)).isEqualTo(4);
+                assertThat(read.array()).isEqualTo(new byte[]{1, 5, 3, 4});
+            }
+
+            // write without truncate only overwrites
+            try (FileChannel channel = FileChannel.open(file, WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[]{6}));
+                assertThat(channel.size()).isEqualTo(4);
+            }
+            try (FileChannel channel = FileChannel.open(file, APPEND)) {
+                channel.write(ByteBuffer.wrap(new byte[]{7}));
+                assertThat(channel.position()).isEqualTo(5);
+            }
+            ByteBuffer read = ByteBuffer.allocate(5);
+            newByteChannel(file, READ).read(read);
+            assertThat(read.array()).isEqualTo(new byte[]{6, 5, 3, 4, 7});
+
+            try (FileChannel channel = FileChannel.open(file, WRITE, TRUNCATE_EXISTING)) {
+                assertThat(channel.size()).isEqualTo(0);
+            }
+        }
+    }
+
+    @Test
+    public void openAsynchronousFileChannel() throws Exception {
+        try (MemoryFileSystem fs = newMemoryFs()) {
+            Path file = fs.getPath("/a");
+            try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(file, WRITE, CREATE_NEW)) {
+                assertThat(channel.write(ByteBuffer.wrap(new byte[]{1, 2}), 0).get()).isEqualTo(2);
+            }
+            try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(file, READ)) {
+                ByteBuffer read = ByteBuffer.allocate(2);
+                assertThat(channel.read(read, 0).get()).isEqualTo(2);
+                assertThat(read.array()).isEqualTo(new byte[]{1, 2});
+            }
+        }
+    }
+
+    @Test
+    public void outputStreamTruncatesOnlyWhenRequested() throws IOException {
+        try (MemoryFileSystem fs = newMemoryFs()) {
+            Path file = fs.getPath("/a");
+            try (OutputStream out = newOutputStream(file)) {
+                out.write("hello world".getBytes());
+            }
+
+            // existing content is overwritten in place
+            try (OutputStream out = newOutputStream(file, WRITE)) {
+                out.write('J');
+            }
+            assertThat(readContent(file)).isEqualTo("Jello world".getBytes());
+
+            // existing content is replaced
+            try (OutputStream out = newOutputStream(file, WRITE, TRUNCATE_EXISTING)) {
+                out.write('J');
+            }
+            assertThat(readContent(file)).isEqualTo("J".getBytes());
+        }
+    }
+
+    @Test
+    public void inputAndOutputStreams() throws IOException {
+        try (MemoryFileSystem fs = newMemoryFs()) {
+            Path file = fs.getPath("/a");
+            try (OutputStream out = newOutputStream(file)) {
+                out.write(new byte[]{1, 2, 3});
+            }
+            try (OutputStream out = newOutputStream(file, APPEND)) {
+                out.write(4);
+            }
+            try (InputStream in = newInputStream(file)) {
+                // stream reads storage directly
+                assertThat(in.markSupported()).isTrue();
+                assertThat(in.skip(1)).isEqualTo(1);
+
+                // stream reads content as it was when opened
+                try (OutputStream out = newOutputStream(file)) {
+                    out.write(5);
+                }
+                byte[] read = new byte[4];
+                assertThat(in.read(read)).isEqualTo(3);
+                assertThat(read).isEqualTo(new byte[]{2, 3, 4, 0});
+                assertThat(in.read()).isEqualTo(-1);
+            }
+            assertThat(size(file)).isEqualTo(1);
+        }
+    }
+
+    @Test(expectedExceptions = NoSuchFileException.class)
+    public void inputStreamOnMissingFile() throws IOException {
+        try (MemoryFileSystem fs = newMemoryFs()) {
+            newInputStream(fs.getPath("/missing"));
+        }
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void inputStreamWithWriteOption() throws IOException {
+        try (MemoryFileSystem fs = newMemoryFs()) {
+            newInputStream(fs.getPath("/a"), WRITE);
+        }
+    }
+
+    @Test(expectedExceptions = NoSuchFileException.class)
+    public void openFileChannelMissingFile() throws IOException {
+        try (MemoryFileSystem fs = newMemoryFs()) {
+            FileChannel.open(fs.getPath("/missing"), READ);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void openFileChannelReadAppend() throws IOException {
+        try (MemoryFileSystem fs = newMemoryFs()) {
+            FileChannel.open(fs.getPath("/a"), READ, APPEND, CREATE);
+        }
+    }
+
+    @Test
+    public void buildThroughUriWithTieredStorage() throws IOException {
+        Map<String, Object> env = new HashMap<>();
+        env.put(MemoryFileSystem.ENV_STORAGE, "tiered");
+        env.put(MemoryFileSystem.ENV_HOT_TIER_SIZE, FileData.BLOCK_SIZE);
+        env.put(MemoryFileSystem.ENV_WARM_TIER_SIZE, "0");
+        try (MemoryFileSystem fs = (MemoryFileSystem) newProvider().newFileSystem(URI.create("memory:/"), env)) {
+            assertThat(fs.getStorage().mode()).isEqualTo(StorageMode.TIERED);
+
+            byte[] data = new byte[2 * FileData.BLOCK_SIZE];
+            Path file = fs.getPath("/a");
+            newByteChannel(file, WRITE, CREATE_NEW).write(ByteBuffer.wrap(data));
+
+            FileStore store = fs.getFileStores().iterator().next();
+            assertThat(store.getAttribute(MemoryFileStore.WARM_TIER_BYTES)).isEqualTo(0L);
+            assertThat((Long) store.getAttribute(MemoryFileStore.COLD_TIER_BYTES))
+                    .isGreaterThanOrEqualTo((long) FileData.BLOCK_SIZE);
+
+            ByteBuffer read = ByteBuffer.allocate(data.length);
+            newByteChannel(file, READ).read(read);
+            assertThat(read.array()).isEqualTo(data);
+        }
+    }
+
+    @Test
+    public void closeReleasesFileContent() throws IOException {
+        MemoryFileSystem fs = MemoryFileSystem
+                .builder(newProvider())
+                .storage(StorageMode.OFF_HEAP)
+                .build();
+        Path file = fs.getPath("/file");
+        newByteChannel(file, WRITE, CREATE_NEW).write(ByteBuffer.wrap(new byte[10]));
+        FileData data = fs.findEntry(file).getData();
+        assertThat(data.size()).isEqualTo(10);
+
+        fs.close();
+
+        assertThat(data.size()).isEqualTo(0);
+        try {
+            data.asOutputStream().write(new byte[1]);
+            fail("writing to closed storage should not be allowed");
+        } catch (ClosedFileSystemException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void deleteReleasesFileContent() throws IOException {
+        MemoryFileSystem fs = newMemoryFs();
+        Path file = fs.getPath("/file");
+        newByteChannel(file, WRITE, CREATE_NEW).write(ByteBuffer.wrap(new byte[10]));
+        FileData data = fs.findEntry(file).getData();
+
+        delete(file);
+
+        assertThat(data.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void deleteReturnsStorageToPool() throws IOException {
+        Map<String, Object> env = new HashMap<>();
+        env.put(MemoryFileSystem.ENV_POOL_SIZE, 1024 * 1024);
+        try (MemoryFileSystem fs = (MemoryFileSystem) newProvider().newFileSystem(URI.create("memory:/"), env)) {
+            FileStore store = fs.getFileStores().iterator().next();
+            for (int i = 0; i < 10; i++) {
+                Path file = fs.getPath("/file" + i);
+                // a full block is written, smaller files are stored inline and would not use any block
+                newByteChannel(file, WRITE, CREATE_NEW).write(ByteBuffer.wrap(new byte[FileData.BLOCK_SIZE]));
+                assertThat(store.getAttribute(MemoryFileStore.POOLED_BYTES)).isEqualTo(0L);
+                delete(file);
+                assertThat(store.getAttribute(MemoryFileStore.POOLED_BYTES)).isEqualTo((long) FileData.BLOCK_SIZE);
+            }
+            assertThat(store.getAttribute(MemoryFileStore.POOL_MISSES)).isEqualTo(1L);
+            assertThat(store.getAttribute(MemoryFileStore.POOL_HITS)).isEqualTo(9L);
+        }
+    }
+
     // TODO : create FS through Path ?
     // TODO : create FS with URI and with explicit parameters
     // TODO : test for concurrent access on open/close state
@@ -143,7 +504,7 @@ public class MemoryFileSystemTest {
     // or
     // - should at least keep an accurate count when doing file operations
 
-    @Test(enabled = false)
+    @Test
     public void writeToFileDecreaseFreeSpace() throws IOException {
         try (FileSystem fs = MemoryFileSystem
                 .builder(newProvider())
@@ -162,16 +523,120 @@ public class MemoryFileSystemTest {
         }
     }
 
-    @Test(enabled = false)
-    public void deleteFreesSpace() {
-        // TODO
+    @Test
+    public void deleteFreesSpace() throws IOException {
+        try (FileSystem fs = MemoryFileSystem
+                .builder(newProvider())
+                .capacity(100)
+                .build()) {
+
+            Path file = fs.getPath("file");
+            newByteChannel(file, WRITE, CREATE_NEW).write(ByteBuffer.wrap(new byte[10]));
+            FileStore store = fs.getFileStores().iterator().next();
+            assertThat(store.getUnallocatedSpace()).isEqualTo(90);
+
+            delete(file);
+            assertThat(store.getUnallocatedSpace()).isEqualTo(100);
+        }
     }
 
-    @Test(enabled = false)
-    public void tryToWriteMoreThanCapacity() {
-        // TOOD
+    @Test
+    public void readOnlyMappingAliasesFile() throws IOException {
+        MemoryFileSystem fs = newMemoryFs();
+        FileStore store = fs.getFileStores().iterator().next();
+        Path file = fs.getPath("/file");
+        try (SeekableByteChannel channel = newByteChannel(file, WRITE, CREATE_NEW)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+        }
+        SeekableByteChannel read = newByteChannel(file, READ);
+        ByteBuffer map = ((MemoryByteChannel) read).map(FileChannel.MapMode.READ_ONLY, 0, 4);
+
+        try (SeekableByteChannel channel = newByteChannel(file, WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{9}));
+        }
+        assertThat(map.get(0)).isEqualTo((byte) 9);
+        // mapped file content is only stored once
+        assertThat(store.getAttribute(MemoryFileStore.PHYSICAL_BYTES)).isEqualTo((long) FileData.BLOCK_SIZE);
+
+        read.close();
+        delete(file);
+        assertThat(store.getAttribute(MemoryFileStore.PHYSICAL_BYTES)).isEqualTo(0L);
     }
 
+    @Test
+    public void readWriteMappingAliasesFile() throws IOException {
+        MemoryFileSystem fs = newMemoryFs();
+        FileStore store = fs.getFileStores().iterator().next();
+        Path file = fs.getPath("/file");
+        SeekableByteChannel readWrite = newByteChannel(file, READ, WRITE, CREATE_NEW);
+        ByteBuffer map = ((MemoryByteChannel) readWrite).map(FileChannel.MapMode.READ_WRITE, 0, 4);
+
+        map.put(0, (byte) 1);
+        try (SeekableByteChannel channel = newByteChannel(file, WRITE)) {
+            channel.position(1);
+            channel.write(ByteBuffer.wrap(new byte[]{2}));
+        }
+        assertThat(readContent(file)).isEqualTo(new byte[]{1, 2, 0, 0});
+        assertThat(map.get(1)).isEqualTo((byte) 2);
+        assertThat(store.getAttribute(MemoryFileStore.PHYSICAL_BYTES)).isEqualTo((long) FileData.BLOCK_SIZE);
+
+        readWrite.close();
+        delete(file);
+        assertThat(store.getAttribute(MemoryFileStore.PHYSICAL_BYTES)).isEqualTo(0L);
+    }
+
+    @Test
+    public void writeAfterDeleteDoesNotUseSpace() throws IOException {
+        try (FileSystem fs = MemoryFileSystem
+                .builder(newProvider())
+                .capacity(100)
+                .build()) {
+
+            Path file = fs.getPath("file");
+            SeekableByteChannel channel = newByteChannel(file, WRITE, CREATE_NEW);
+            channel.write(ByteBuffer.wrap(new byte[10]));
+            FileStore store = fs.getFileStores().iterator().next();
+
+            delete(file);
+            try {
+                channel.write(ByteBuffer.wrap(new byte[10]));
+                fail("file has been deleted");
+            } catch (DeletedFileException e) {
+                // expected
+            }
+            assertThat(store.getUnallocatedSpace()).isEqualTo(100);
+        }
+    }
+
+    @Test
+    public void tryToWriteMoreThanCapacity() throws IOException {
+        try (FileSystem fs = MemoryFileSystem
+                .builder(newProvider())
+                .capacity(100)
+                .build()) {
+
+            Path file = fs.getPath("/file");
+            SeekableByteChannel channel = newByteChannel(file, WRITE, CREATE_NEW);
+            channel.write(ByteBuffer.wrap(new byte[60]));
+            try {
+                channel.write(ByteBuffer.wrap(new byte[60]));
+                fail("should not write more than capacity");
+            } catch (FileSystemException e) {
+                assertThat(e.getMessage()).isEqualTo("no space left");
+            }
+            assertThat(channel.size()).isEqualTo(60);
+            assertThat(fs.getFileStores().iterator().next().getUnallocatedSpace()).isEqualTo(40);
+
+            // copy also requires space
+            try {
+                Files.copy(file, fs.getPath("/copy"));
+                fail("should not copy more than capacity");
+            } catch (FileSystemException e) {
+                assertThat(e.getMessage()).isEqualTo("no space left");
+            }
+            assertThat(fs.getFileStores().iterator().next().getUnallocatedSpace()).isEqualTo(40);
+        }
+    }
 
     @Test
     public void buildWithDefaultValues() throws IOException {
@@ -179,12 +644,12 @@ public class MemoryFileSystemTest {
 
         assertThat(fs.getId()).isEqualTo("");
 
-        // singlefile store by default or size zero
+        // single file store by default, with unlimited size
         assertThat(fs.getFileStores()).hasSize(1);
         for (FileStore store : fs.getFileStores()) {
-            assertThat(store.getTotalSpace()).isEqualTo(0);
-            assertThat(store.getUnallocatedSpace()).isEqualTo(0);
-            assertThat(store.getUsableSpace()).isEqualTo(0);
+            assertThat(store.getTotalSpace()).isEqualTo(Long.MAX_VALUE);
+            assertThat(store.getUnallocatedSpace()).isEqualTo(Long.MAX_VALUE);
+            assertThat(store.getUsableSpace()).isEqualTo(Long.MAX_VALUE);
         }
     }
 
@@ -690,12 +1155,85 @@ public class MemoryFileSystemTest {
         channel.read(ByteBuffer.wrap(new byte[0]));
     }
 
+    @Test
+    public void readAndWriteChannel() throws IOException {
+        MemoryFileSystem fs = newMemoryFs();
+        MemoryPath path = MemoryPath.create(fs, "/file");
+        SeekableByteChannel channel = newByteChannel(path, READ, WRITE, CREATE_NEW);
+        channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+
+        // overwrite in place
+        channel.position(1);
+        channel.write(ByteBuffer.wrap(new byte[]{4}));
+        assertThat(channel.size()).isEqualTo(3);
+
+        channel.position(0);
+        ByteBuffer read = ByteBuffer.allocate(3);
+        assertThat(channel.read(read)).isEqualTo(3);
+        assertThat(read.array()).isEqualTo(new byte[]{1, 4, 3});
+    }
+
+    @Test
+    public void appendChannelWritesAtEndAfterSeek() throws IOException {
+        MemoryFileSystem fs = newMemoryFs();
+        MemoryPath path = MemoryPath.create(fs, "/file");
+        newByteChannel(path, WRITE, CREATE_NEW).write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+
+        SeekableByteChannel channel = newByteChannel(path, WRITE, APPEND);
+        assertThat(channel.position()).isEqualTo(3);
+        channel.position(0).write(ByteBuffer.wrap(new byte[]{4}));
+        assertThat(readContent(path)).isEqualTo(new byte[]{1, 2, 3, 4});
+    }
+
+    @Test
+    public void concurrentAppendChannels() throws IOException {
+        MemoryFileSystem fs = newMemoryFs();
+        MemoryPath path = MemoryPath.create(fs, "/file");
+        SeekableByteChannel first = newByteChannel(path, WRITE, APPEND, CREATE);
+        SeekableByteChannel second = newByteChannel(path, WRITE, APPEND);
+        first.write(ByteBuffer.wrap("AAAA".getBytes()));
+        second.write(ByteBuffer.wrap("BBBB".getBytes()));
+        assertThat(readContent(path)).isEqualTo("AAAABBBB".getBytes());
+    }
+
+    @Test
+    public void writeChannelTruncatesOnlyWhenRequested() throws IOException {
+        MemoryFileSystem fs = newMemoryFs();
+        MemoryPath path = MemoryPath.create(fs, "/file");
+        try (SeekableByteChannel channel = newByteChannel(path, WRITE, CREATE_NEW)) {
+            channel.write(ByteBuffer.wrap("hello world".getBytes()));
+        }
+
+        // existing content is overwritten in place
+        try (SeekableByteChannel channel = newByteChannel(path, WRITE)) {
+            assertThat(channel.size()).isEqualTo(11);
+            channel.write(ByteBuffer.wrap("J".getBytes()));
+        }
+        assertThat(readContent(path)).isEqualTo("Jello world".getBytes());
+
+        // existing content is replaced
+        try (SeekableByteChannel channel = newByteChannel(path, WRITE, TRUNCATE_EXISTING)) {
+            assertThat(channel.size()).isEqualTo(0);
+            channel.write(ByteBuffer.wrap("J".getBytes()));
+        }
+        assertThat(readContent(path)).isEqualTo("J".getBytes());
+    }
+
+    private static byte[] readContent(Path path) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate((int) size(path));
+        try (SeekableByteChannel channel = newByteChannel(path, READ)) {
+            while (content.hasRemaining() && 0 <= channel.read(content)) {
+                // reads until buffer is full
+            }
+        }
+        return content.array();
+    }
+
     @Test(expectedExceptions = IllegalArgumentException.class)
-    public void tryReadAndWriteChannel() throws IOException {
-        // at most one of read or write options is required
+    public void tryReadAndAppendChannel() throws IOException {
         MemoryFileSystem fs = newMemoryFs();
         MemoryPath path = MemoryPath.create(fs, "/file");
-        newByteChannel(path, READ, WRITE);
+        newByteChannel(path, READ, APPEND, CREATE);
     }
 
     @Test(expectedExceptions = DoesNotExistsException.class)
@@ -758,7 +1296,7 @@ public class MemoryFileSystemTest {
     public void tryChannelWithUnsupportedOptions() throws IOException {
         // we bypass most of checks by trying to write to an existing file
         // but must fail since we try to use an insupported option.
-        for (StandardOpenOption unsuported : Arrays.asList(SPARSE, DELETE_ON_CLOSE, SYNC, DSYNC)) {
+        for (StandardOpenOption unsuported : Arrays.asList(DELETE_ON_CLOSE, SYNC, DSYNC)) {
             boolean thrown = false;
             try {
                 writeMissingCreateNew(WRITE, CREATE, unsuported);
@@ -769,6 +1307,28 @@ public class MemoryFileSystemTest {
         }
     }
 
+    @Test
+    public void writeSparseFile() throws IOException {
+        try (MemoryFileSystem fs = newMemoryFs()) {
+            Path file = fs.getPath("/sparse");
+            long size = 1024L * 1024L;
+            SeekableByteChannel channel = newByteChannel(file, WRITE, CREATE_NEW, SPARSE);
+            channel.position(size - 1);
+            channel.write(ByteBuffer.wrap(new byte[]{42}));
+
+            assertThat(Files.size(file)).isEqualTo(size);
+            FileStore store = fs.getFileStores().iterator().next();
+            assertThat(store.getAttribute(MemoryFileStore.LOGICAL_BYTES)).isEqualTo(size);
+            assertThat(store.getAttribute(MemoryFileStore.PHYSICAL_BYTES)).isEqualTo((long) FileData.BLOCK_SIZE);
+
+            ByteBuffer read = ByteBuffer.allocate(2);
+            SeekableByteChannel readChannel = newByteChannel(file, READ);
+            readChannel.position(size - 2);
+            assertThat(readChannel.read(read)).isEqualTo(2);
+            assertThat(read.array()).isEqualTo(new byte[]{0, 42});
+        }
+    }
+
     @Test
     public void writeAppend() throws IOException {
         MemoryFileSystem fs = newMemoryFs();
@@ -793,6 +1353,10 @@ public class MemoryFileSystemTest {
 
         write(file, new byte[]{5, 6, 7, 8}, WRITE, TRUNCATE_EXISTING);
         assertThat(file).contains(new byte[]{5, 6, 7, 8});
+
+        // without truncation, existing content is overwritten in place
+        write(file, new byte[]{9}, WRITE);
+        assertThat(file).contains(new byte[]{9, 6, 7, 8});
     }
 
     // watch service not implemented
@@ -0,0 +1,84 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpillFileTest {
+
+    @Test
+    public void emptyByDefault() throws IOException {
+        SpillFile file = new SpillFile();
+        assertThat(file.blockCount()).isEqualTo(0);
+        assertThat(file.fileSize()).isEqualTo(0);
+        file.close();
+    }
+
+    @Test
+    public void allocateBlocksOutsideHeap() throws IOException {
+        SpillFile file = new SpillFile();
+        try {
+            ByteBuffer block = file.allocate();
+            assertThat(block.isDirect()).isTrue();
+            assertThat(block.capacity()).isEqualTo(FileData.BLOCK_SIZE);
+            assertThat(file.blockCount()).isEqualTo(1);
+            assertThat(file.fileSize()).isGreaterThanOrEqualTo(FileData.BLOCK_SIZE);
+
+            block.put(0, (byte) 42);
+            assertThat(block.get(0)).isEqualTo((byte) 42);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void blocksDoNotOverlap() throws IOException {
+        SpillFile file = new SpillFile();
+        try {
+            ByteBuffer first = file.allocate();
+            ByteBuffer second = file.allocate();
+            first.put(FileData.BLOCK_SIZE - 1, (byte) 1);
+            assertThat(second.get(0)).isEqualTo((byte) 0);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void releasedBlocksAreReused() throws IOException {
+        SpillFile file = new SpillFile();
+        try {
+            ByteBuffer block = file.allocate();
+            long fileSize = file.fileSize();
+
+            assertThat(file.release(block)).isTrue();
+            assertThat(file.blockCount()).isEqualTo(0);
+            // releasing twice or releasing unknown block is ignored
+            assertThat(file.release(block)).isFalse();
+            assertThat(file.release(ByteBuffer.allocate(FileData.BLOCK_SIZE))).isFalse();
+
+            file.allocate();
+            assertThat(file.blockCount()).isEqualTo(1);
+            assertThat(file.fileSize()).isEqualTo(fileSize);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void regionsUnmappedOnceBlocksReleased() throws IOException {
+        SpillFile file = new SpillFile();
+        ByteBuffer block = file.allocate();
+        block.put(0, (byte) 42);
+        file.close();
+        // block may still be used until released
+        assertThat(block.get(0)).isEqualTo((byte) 42);
+        assertThat(file.fileSize()).isGreaterThan(0);
+
+        assertThat(file.release(block)).isTrue();
+        assertThat(file.fileSize()).isEqualTo(0);
+    }
+}